@@ -0,0 +1,62 @@
+package micro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes allocated per request on the steady-state path; run it with -prof gc and read
+ * gc.alloc.rate.norm. encodePooled writes a frame into a {@link BufferPool} buffer as the
+ * connections do, encodeArray is the byte[] it replaces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class AllocationBenchmark {
+    private final static String TAG = "bench-allocation";
+
+    @Param({"BLOCKING", "NIO"})
+    public NetPoint.ENGINES engine;
+
+    private NetPoint np;
+    private NetClient<Payload> client;
+    private Protocol protocol;
+    private Payload request;
+
+    @Setup
+    public void setup() {
+        np = Loopback.start(TAG, 16, engine);
+        client = Loopback.client(TAG, JsonCodec.JSON);
+        protocol = new Protocol();
+        request = Payload.small(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.disconnect();
+        np.stop();
+    }
+
+    @Benchmark
+    public Payload load() {
+        return client.load(request);
+    }
+
+    @Benchmark
+    public int encodePooled() throws IOException {
+        ByteBuffer frame = protocol.encode(request);
+        int n = frame.remaining();
+        BufferPool.release(frame);
+        return n;
+    }
+
+    @Benchmark
+    public int encodeArray() throws IOException {
+        return protocol.codec.encode(request).length;
+    }
+}
@@ -0,0 +1,45 @@
+package micro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of the codecs alone, for small and large objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"json", "smile"})
+    public String codec;
+
+    @Param({"small", "large"})
+    public String size;
+
+    private Codec c;
+    private Payload payload;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        c = codec.equals("smile") ? SmileCodec.SMILE : JsonCodec.JSON;
+        payload = size.equals("large") ? Payload.large(1) : Payload.small(1);
+        encoded = c.encode(payload);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return c.encode(payload);
+    }
+
+    @Benchmark
+    public Payload decode() throws IOException {
+        return c.decode(ByteBuffer.wrap(encoded), Payload.class);
+    }
+}
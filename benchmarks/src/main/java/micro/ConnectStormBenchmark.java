@@ -0,0 +1,59 @@
+package micro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections accepted per second while many clients connect at once, as they all do when a
+ * service comes back after a deploy. An operation opens a TCP connection, has one request answered
+ * on it, so only connections the server took count, and closes it again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@org.openjdk.jmh.annotations.Threads(32)
+public class ConnectStormBenchmark {
+    private final static String TAG = "bench-connect";
+
+    @Param({"BLOCKING", "NIO"})
+    public NetPoint.ENGINES engine;
+
+    @Param({"1", "4"})
+    public int acceptors;
+
+    @Param({"0", "1024"})
+    public int acceptBacklog;
+
+    private NetPoint np;
+    private Set<String> endpoint;
+    private Payload request;
+
+    @Setup
+    public void setup() {
+        np = Loopback.start(TAG, 256, new NetPoint.Options().engine(engine)
+                .acceptors(acceptors).acceptBacklog(acceptBacklog).unixSocket(false));
+        endpoint = Loopback.endpoint(TAG);
+        request = Payload.small(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        np.stop();
+    }
+
+    @Benchmark
+    public Payload connect() {
+        NetClient<Payload> client = new NetClient<>(TAG, JsonCodec.JSON, endpoint);
+        try {
+            client.connectNext();
+            return client.load(request);
+        } finally {
+            client.disconnect();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package micro;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Starts the service of a benchmark and connects clients to its loopback endpoint only,
+ * so the numbers do not depend on the network the host is on.
+ */
+final class Loopback {
+    private final static long DISCOVERY_TIMEOUT = 30*1000;
+
+    private Loopback() {
+    }
+
+    static NetPoint start(String tag, int maxClients, NetPoint.ENGINES engine) {
+        return start(tag, maxClients, new NetPoint.Options().engine(engine));
+    }
+
+    static NetPoint start(String tag, int maxClients, NetPoint.Options options) {
+        NetPoint np = NetPoint.start(tag, maxClients, (cmd, o) -> o, options);
+        endpoint(tag);
+        return np;
+    }
+
+    static Set<String> endpoint(String tag) {
+        long deadline = System.currentTimeMillis() + DISCOVERY_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            for (String e : DiscoveryRegistry.get().await(tag, DISCOVERY_TIMEOUT))
+                if (e.startsWith("127.")) return Collections.singleton(e);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        throw new IllegalStateException("no loopback endpoint for " + tag);
+    }
+
+    static <T> NetClient<T> client(String tag, Codec codec) {
+        NetClient<T> client = new NetClient<T>(tag, codec, endpoint(tag));
+        client.connectNext();
+        return client;
+    }
+}
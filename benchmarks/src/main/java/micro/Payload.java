@@ -0,0 +1,67 @@
+package micro;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request object of the benchmarks: a few fields, or a few hundred kilobytes with {@link #large}.
+ */
+public class Payload {
+    private int id;
+    private String name;
+    private List<Double> values = new ArrayList<>();
+    private List<String> tags = new ArrayList<>();
+
+    public Payload() {
+    }
+
+    static Payload small(int id) {
+        Payload p = new Payload();
+        p.id = id;
+        p.name = "user-" + id;
+        p.values.add(52.2297);
+        p.values.add(21.0122);
+        return p;
+    }
+
+    static Payload large(int id) {
+        Payload p = small(id);
+        for (int i = 0; i < 10000; i++) {
+            p.values.add(i * 0.5);
+            p.tags.add("tag-" + i);
+        }
+        return p;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<Double> getValues() {
+        return values;
+    }
+
+    public void setValues(List<Double> values) {
+        this.values = values;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+}
@@ -0,0 +1,51 @@
+package micro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one load() on a persistent connection, against connecting for every request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class RoundTripBenchmark {
+    private final static String TAG = "bench-roundtrip";
+
+    @Param({"BLOCKING", "NIO"})
+    public NetPoint.ENGINES engine;
+
+    private NetPoint np;
+    private NetClient<Payload> client;
+    private Set<String> endpoint;
+    private Payload request;
+
+    @Setup
+    public void setup() {
+        np = Loopback.start(TAG, 16, engine);
+        endpoint = Loopback.endpoint(TAG);
+        client = Loopback.client(TAG, JsonCodec.JSON);
+        request = Payload.small(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.disconnect();
+        np.stop();
+    }
+
+    @Benchmark
+    public Payload load() {
+        return client.load(request);
+    }
+
+    @Benchmark
+    public Payload loadAndClose() {
+        return new NetClient<Payload>(TAG, JsonCodec.JSON, endpoint).connectNext().loadAndClose(request);
+    }
+}
@@ -0,0 +1,72 @@
+package micro;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second against maxClients and the number of concurrent clients,
+ * each benchmark thread using a connection of its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ThroughputBenchmark {
+    private final static String TAG = "bench-throughput";
+
+    @Param({"BLOCKING", "NIO"})
+    public NetPoint.ENGINES engine;
+
+    @Param({"16", "64"})
+    public int maxClients;
+
+    private NetPoint np;
+
+    @Setup
+    public void setup() {
+        np = Loopback.start(TAG, maxClients, engine);
+    }
+
+    @TearDown
+    public void tearDown() {
+        np.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        NetClient<Payload> client;
+        Payload request;
+
+        @Setup
+        public void setup(ThroughputBenchmark service) {
+            client = Loopback.client(TAG, JsonCodec.JSON);
+            request = Payload.small((int) Thread.currentThread().getId());
+        }
+
+        @TearDown
+        public void tearDown() {
+            client.disconnect();
+        }
+    }
+
+    @Benchmark
+    @org.openjdk.jmh.annotations.Threads(1)
+    public Payload oneClient(Client c) {
+        return c.client.load(c.request);
+    }
+
+    @Benchmark
+    @org.openjdk.jmh.annotations.Threads(4)
+    public Payload fourClients(Client c) {
+        return c.client.load(c.request);
+    }
+
+    @Benchmark
+    @org.openjdk.jmh.annotations.Threads(16)
+    public Payload sixteenClients(Client c) {
+        return c.client.load(c.request);
+    }
+}
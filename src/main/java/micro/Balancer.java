@@ -0,0 +1,71 @@
+package micro;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Orders the endpoints of a tag for the next connection attempt. The load-aware strategies
+ * combine the load each endpoint announced with the requests this process has outstanding on it.
+ */
+class Balancer {
+    private final static Map<String,AtomicInteger> outstanding = new ConcurrentHashMap<>();
+    private final static AtomicInteger next = new AtomicInteger();
+
+    static AtomicInteger outstanding(String endpoint) {
+        return outstanding.computeIfAbsent(endpoint, e -> new AtomicInteger());
+    }
+
+    /**
+     * Best endpoint first; the one to avoid, if any, goes last.
+     */
+    static List<String> order(NetClient.BALANCING strategy, Collection<String> endpoints, String avoid) {
+        List<String> list = new ArrayList<>(endpoints);
+        Collections.sort(list);
+        if (list.size() > 1) {
+            switch (strategy) {
+                case ROUND_ROBIN:
+                    Collections.rotate(list, -Math.floorMod(next.getAndIncrement(), list.size()));
+                    break;
+                case POWER_OF_TWO:
+                    powerOfTwo(list);
+                    break;
+                case LEAST_OUTSTANDING: {
+                    // counts move while sorting, so take them once
+                    Map<String,Integer> counts = new HashMap<>();
+                    Map<String,Double> costs = new HashMap<>();
+                    for (String e : list) {
+                        counts.put(e, outstanding(e).get());
+                        costs.put(e, cost(e));
+                    }
+                    list.sort(Comparator.comparingInt((String e) -> counts.get(e)).thenComparingDouble(costs::get));
+                    break;
+                }
+                default:
+            }
+        }
+        if (avoid != null && list.remove(avoid)) list.add(avoid);
+        return list;
+    }
+
+    /**
+     * The cheaper of two random endpoints first, then the rest by cost as fallbacks.
+     */
+    private static void powerOfTwo(List<String> list) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(list.size());
+        int b = random.nextInt(list.size() - 1);
+        if (b >= a) b++;
+        Map<String,Double> costs = new HashMap<>();
+        for (String e : list) costs.put(e, cost(e));
+        String best = costs.get(list.get(a)) <= costs.get(list.get(b)) ? list.get(a) : list.get(b);
+        list.remove(best);
+        list.sort(Comparator.comparingDouble(costs::get));
+        list.add(0, best);
+    }
+
+    private static double cost(String endpoint) {
+        return DiscoveryRegistry.get().load(endpoint).cost(outstanding(endpoint).get());
+    }
+}
@@ -0,0 +1,99 @@
+package micro;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The results of {@link NetClient#loadAll} and its kin, in the order of the items sent. An item
+ * that failed is null here and has its error in {@link #error(int)}; the other items are not
+ * affected by it.
+ */
+public final class Batch<T> extends AbstractList<T> {
+    private final Object[] values;
+    private final String[] errors;
+
+    Batch(Object[] values, String[] errors) {
+        this.values = values;
+        this.errors = errors;
+    }
+
+    static <T> Batch<T> failed(int size, String error) {
+        String[] errors = new String[size];
+        Arrays.fill(errors, error);
+        return new Batch<>(new Object[size], errors);
+    }
+
+    /**
+     * The results of a decoded reply, where {@link Failure}s stand for the failed items.
+     */
+    static <T> Batch<T> of(List<?> items) {
+        Object[] values = new Object[items.size()];
+        String[] errors = new String[items.size()];
+        for (int i = 0; i < values.length; i++) {
+            Object o = items.get(i);
+            if (o instanceof Failure) errors[i] = ((Failure) o).message;
+            else values[i] = o;
+        }
+        return new Batch<>(values, errors);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int i) {
+        return (T) values[i];
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Why the item failed, null if it did not.
+     */
+    public String error(int i) {
+        return errors[i];
+    }
+
+    public boolean failed() {
+        for (String e : errors)
+            if (e != null) return true;
+        return false;
+    }
+
+    /**
+     * The items of a request, sent in one frame.
+     */
+    static final class Items {
+        final List<?> list;
+
+        Items(Collection<?> items) {
+            this.list = new ArrayList<>(items);
+        }
+    }
+
+    /**
+     * An item that failed, in a batch on the wire.
+     */
+    static final class Failure {
+        final String message;
+
+        Failure(String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * An item already encoded with the codec of the connection, such as a cached reply.
+     */
+    static final class Encoded {
+        final Class<?> type;
+        final byte[] data;
+
+        Encoded(Class<?> type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package micro;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static micro.NetPoint.logger;
+
+/**
+ * Direct buffers for frames on their way to or from a socket, reused instead of allocated per
+ * request. Sizes go up in powers of two from 1 KB to 1 MB; larger requests get a plain heap buffer
+ * that is simply dropped on release. A platform thread keeps a few buffers of each size to itself,
+ * the rest are shared. Virtual threads are too many and too short-lived to hold buffers, so they
+ * always go to the shared queues.
+ * <p>
+ * With -Dmicro.buffers.track=true every buffer remembers where it was taken, {@link #leaks()}
+ * lists those never given back and a second release of a buffer is logged instead of pooling it twice.
+ */
+public final class BufferPool {
+    final static int MIN = 1024;
+    final static int MAX = 1024*1024;
+    private final static int SHIFT = Integer.numberOfTrailingZeros(MIN);
+    private final static int CLASSES = Integer.numberOfTrailingZeros(MAX) - SHIFT + 1;
+    private final static int SHARED_BYTES = 4*1024*1024;
+    private final static int LOCAL_BYTES = 256*1024;
+    private final static boolean TRACK = Boolean.getBoolean("micro.buffers.track");
+
+    private final static List<Queue<ByteBuffer>> shared = new ArrayList<>(CLASSES);
+    private final static AtomicInteger[] sharedSize = new AtomicInteger[CLASSES];
+    private final static ThreadLocal<ArrayDeque<ByteBuffer>[]> local = ThreadLocal.withInitial(BufferPool::caches);
+    private final static Map<ByteBuffer,Throwable> taken = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final static LongAdder acquired = new LongAdder();
+    private final static LongAdder released = new LongAdder();
+    private final static LongAdder allocated = new LongAdder();
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+            sharedSize[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    private static ArrayDeque<ByteBuffer>[] caches() {
+        @SuppressWarnings("unchecked")
+        ArrayDeque<ByteBuffer>[] c = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[CLASSES];
+        for (int i = 0; i < CLASSES; i++) c[i] = new ArrayDeque<>();
+        return c;
+    }
+
+    private static int index(int size) {
+        return size <= MIN ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - SHIFT;
+    }
+
+    private static int capacity(int index) {
+        return MIN << index;
+    }
+
+    private static int sharedLimit(int index) {
+        return Math.min(256, Math.max(4, SHARED_BYTES / capacity(index)));
+    }
+
+    private static int localLimit(int index) {
+        return Math.min(8, Math.max(1, LOCAL_BYTES / capacity(index)));
+    }
+
+    /**
+     * A cleared buffer of at least size bytes with its limit at size.
+     */
+    public static ByteBuffer acquire(int size) {
+        if (size > MAX) return ByteBuffer.allocate(size);
+        int i = index(size);
+        ByteBuffer b = null;
+        boolean virtual = Threads.isVirtual(Thread.currentThread());
+        if (!virtual) b = local.get()[i].poll();
+        if (b == null) {
+            b = shared.get(i).poll();
+            if (b != null) sharedSize[i].decrementAndGet();
+        }
+        if (b == null) {
+            b = ByteBuffer.allocateDirect(capacity(i));
+            allocated.increment();
+        }
+        acquired.increment();
+        if (TRACK) taken.put(b, new Throwable("buffer of " + size + " bytes taken by " + Thread.currentThread().getName()));
+        b.clear().limit(size);
+        return b;
+    }
+
+    /**
+     * Gives a buffer of {@link #acquire} back. It must not be used afterwards; heap buffers are ignored.
+     */
+    public static void release(ByteBuffer b) {
+        if (b == null || !b.isDirect()) return;
+        int i = index(b.capacity());
+        if (i >= CLASSES || capacity(i) != b.capacity()) return;
+        if (TRACK && taken.remove(b) == null) {
+            logger.error("buffer released twice", new IllegalStateException(b.toString()));
+            return;
+        }
+        released.increment();
+        if (!Threads.isVirtual(Thread.currentThread())) {
+            ArrayDeque<ByteBuffer> cache = local.get()[i];
+            if (cache.size() < localLimit(i)) {
+                cache.push(b);
+                return;
+            }
+        }
+        if (sharedSize[i].incrementAndGet() <= sharedLimit(i))
+            shared.get(i).add(b);
+        else
+            sharedSize[i].decrementAndGet();
+    }
+
+    static void release(ByteBuffer[] buffers) {
+        for (ByteBuffer b : buffers) release(b);
+    }
+
+    /**
+     * Pooled buffers taken and not yet released.
+     */
+    public static long outstanding() {
+        return acquired.sum() - released.sum();
+    }
+
+    /**
+     * Direct buffers allocated since start; it stops growing once the pool covers the load.
+     */
+    public static long allocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * Where the outstanding buffers were taken, empty unless tracking is on.
+     */
+    public static List<Throwable> leaks() {
+        synchronized (taken) {
+            return new ArrayList<>(taken.values());
+        }
+    }
+
+    /**
+     * Collects the bytes of an encoder in pooled buffers, moving to a buffer twice the size when
+     * one is full. The bytes before the start offset are left for a frame header.
+     */
+    static final class Output extends OutputStream {
+        private ByteBuffer buffer;
+
+        Output(int start, int expected) {
+            this.buffer = acquire(start + expected);
+            buffer.limit(buffer.capacity()).position(start);
+        }
+
+        private void ensure(int n) {
+            if (buffer.remaining() >= n) return;
+            int needed = buffer.position() + n;
+            ByteBuffer b = acquire(Math.max(needed, buffer.capacity() * 2));
+            b.limit(b.capacity());
+            buffer.flip();
+            b.put(buffer);
+            BufferPool.release(buffer);
+            buffer = b;
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            buffer.put(b, off, len);
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buffer.putInt(v);
+        }
+
+        void putInt(int index, int v) {
+            buffer.putInt(index, v);
+        }
+
+        int position() {
+            return buffer.position();
+        }
+
+        /**
+         * Drops what was written after the position.
+         */
+        void reset(int position) {
+            buffer.position(position);
+        }
+
+        /**
+         * The buffer from offset 0 to the end of the bytes written; the stream must not be used afterwards.
+         */
+        ByteBuffer buffer() {
+            buffer.flip();
+            return buffer;
+        }
+
+        void release() {
+            BufferPool.release(buffer);
+        }
+    }
+}
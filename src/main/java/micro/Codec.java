@@ -0,0 +1,28 @@
+package micro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns objects into frame payloads and back. The codec of a binary connection is
+ * agreed on in the hello exchange by its {@link #id()}; text connections always use JSON.
+ */
+public interface Codec {
+
+    byte id();
+
+    String name();
+
+    byte[] encode(Object o) throws IOException;
+
+    /**
+     * Writes the encoding of o to out. Codecs that can stream should, the frames of a
+     * connection are encoded this way into pooled buffers.
+     */
+    default void encode(Object o, OutputStream out) throws IOException {
+        out.write(encode(o));
+    }
+
+    <T> T decode(ByteBuffer data, Class<T> type) throws IOException;
+}
@@ -0,0 +1,91 @@
+package micro;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload compression of the binary protocol. A compressed payload starts with the
+ * length of the original one, so the receiver can allocate it in one go.
+ */
+final class Compressor {
+    private final static LZ4Compressor lz4 = LZ4Factory.fastestInstance().fastCompressor();
+    private final static LZ4FastDecompressor unlz4 = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private Compressor() {
+    }
+
+    /**
+     * The compressed payload, or null if it would not be smaller than the data.
+     */
+    static byte[] compress(NetPoint.COMPRESSION c, byte[] data) {
+        byte[] out;
+        int n;
+        switch (c) {
+            case LZ4:
+                out = new byte[4 + lz4.maxCompressedLength(data.length)];
+                n = 4 + lz4.compress(data, 0, data.length, out, 4, out.length - 4);
+                break;
+            case DEFLATE:
+                Deflater deflater = new Deflater();
+                try {
+                    deflater.setInput(data);
+                    deflater.finish();
+                    out = new byte[data.length];
+                    n = 4 + deflater.deflate(out, 4, out.length - 4);
+                    if (!deflater.finished()) return null;
+                } finally {
+                    deflater.end();
+                }
+                break;
+            default:
+                return null;
+        }
+        if (n >= data.length) return null;
+        ByteBuffer.wrap(out).putInt(data.length);
+        byte[] result = new byte[n];
+        System.arraycopy(out, 0, result, 0, n);
+        return result;
+    }
+
+    static ByteBuffer decompress(NetPoint.COMPRESSION c, ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) throw new IOException("bad compressed payload");
+        int length = in.getInt();
+        if (length < 0 || length > Frame.MAX_PAYLOAD) throw new IOException("bad uncompressed length " + length);
+        byte[] data = new byte[in.remaining()];
+        in.get(data);
+        byte[] out = new byte[length];
+        switch (c) {
+            case LZ4:
+                try {
+                    if (unlz4.decompress(data, 0, out, 0, length) != data.length)
+                        throw new IOException("bad lz4 payload");
+                } catch (LZ4Exception e) {
+                    throw new IOException(e);
+                }
+                break;
+            case DEFLATE:
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(data);
+                    if (inflater.inflate(out) != length || !inflater.finished())
+                        throw new IOException("bad deflate payload");
+                } catch (DataFormatException e) {
+                    throw new IOException(e);
+                } finally {
+                    inflater.end();
+                }
+                break;
+            default:
+                throw new IOException("compression " + c + " not agreed on");
+        }
+        return ByteBuffer.wrap(out);
+    }
+}
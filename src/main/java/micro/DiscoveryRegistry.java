@@ -0,0 +1,330 @@
+package micro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * One listener per JVM for the {@link NetPoint} announcements. It keeps an immutable snapshot
+ * of the endpoints of every tag, so clients read it without locking or waiting, and drops
+ * endpoints that have not been announced for {@link #TTL} ms or that said goodbye.
+ * <p>
+ * Hosts only announce now and then, so a tag nobody announced yet is asked for: {@link #await}
+ * multicasts a probe "mnp,tag" and the hosts of the tag answer with their announcement by
+ * unicast, to a socket of its own, within a few milliseconds.
+ */
+public class DiscoveryRegistry implements Runnable {
+    public static final Logger logger = LoggerFactory.getLogger(DiscoveryRegistry.class);
+
+    public final static long TTL = 3*NetPoint.MULTICAST_HEARTBEAT;
+    private final static int SO_TIMEOUT = 1000;
+    // first wait for an answer to a probe, doubled for every probe after it
+    private final static long PROBE_RETRY = 100;
+    private static DiscoveryRegistry registry;
+
+    private final Map<String,Set<String>> snapshots = new ConcurrentHashMap<>();
+    private final Map<String,Load> loads = new ConcurrentHashMap<>();
+    private final Map<String,String> unixPaths = new ConcurrentHashMap<>();
+    private final Map<String,List<Consumer<Set<String>>>> listeners = new ConcurrentHashMap<>();
+    // guarded by the registry, which the listener and the probe thread both update
+    private final Map<String,Map<String,Long>> seen = new HashMap<>();
+    private final Map<String,Long> probed = new ConcurrentHashMap<>();
+    private final Object changed = new Object();
+    private volatile MulticastSocket probes;
+
+    private DiscoveryRegistry() {
+    }
+
+    public static synchronized DiscoveryRegistry get() {
+        if (registry == null) {
+            registry = new DiscoveryRegistry();
+            Thread t = new Thread(registry, "discovery-registry");
+            t.setDaemon(true);
+            t.start();
+            Thread p = new Thread(registry::answers, "discovery-probe");
+            p.setDaemon(true);
+            p.start();
+        }
+        return registry;
+    }
+
+    /**
+     * The currently known "host:port" endpoints of the tag, never null.
+     */
+    public Set<String> endpoints(String tag) {
+        return snapshots.getOrDefault(tag, Collections.emptySet());
+    }
+
+    /**
+     * The Unix domain socket of the endpoint if it runs on this machine, otherwise null.
+     */
+    public String unix(String endpoint) {
+        return unixPaths.get(endpoint);
+    }
+
+    /**
+     * The load last announced for the endpoint.
+     */
+    public Load load(String endpoint) {
+        return loads.getOrDefault(endpoint, Load.UNKNOWN);
+    }
+
+    /**
+     * Waits until the tag has at least one endpoint or the timeout expires, probing for it
+     * meanwhile at growing intervals.
+     */
+    public Set<String> await(String tag, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        long retry = PROBE_RETRY;
+        long next = 0;
+        while (endpoints(tag).isEmpty()) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) break;
+            if (now >= next) {
+                probe(tag);
+                next = now + retry;
+                retry = Math.min(retry * 2, NetPoint.MULTICAST_INTERVAL);
+            }
+            synchronized (changed) {
+                if (!endpoints(tag).isEmpty()) break;
+                try {
+                    changed.wait(Math.max(1, Math.min(deadline, next) - now));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return endpoints(tag);
+    }
+
+    /**
+     * Asks the hosts of the tag to announce themselves right away. Probes for one tag go out
+     * {@link #PROBE_RETRY} ms apart at most, however many threads wait for it.
+     */
+    public void probe(String tag) {
+        MulticastSocket socket = probes;
+        if (socket == null) return;
+        long now = System.currentTimeMillis();
+        Long last = probed.get(tag);
+        if (last != null && now - last < PROBE_RETRY) return;
+        probed.put(tag, now);
+        byte[] buf = ("mnp," + tag).getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(buf, buf.length, InetAddress.getByName(NetPoint.MULTICAST_ADDRESS), NetPoint.MULTICAST_PORT));
+        } catch (IOException e) {
+            logger.error("discovery probe - " + e.toString());
+        }
+    }
+
+    /**
+     * The listener gets the new endpoint set of the tag every time an endpoint comes or goes.
+     */
+    public void subscribe(String tag, Consumer<Set<String>> listener) {
+        listeners.computeIfAbsent(tag, t -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public void unsubscribe(String tag, Consumer<Set<String>> listener) {
+        List<Consumer<Set<String>>> l = listeners.get(tag);
+        if (l != null) l.remove(listener);
+    }
+
+    public void run() {
+        while (true) {
+            try (MulticastSocket socket = new MulticastSocket(NetPoint.MULTICAST_PORT)) {
+                socket.joinGroup(new InetSocketAddress(InetAddress.getByName(NetPoint.MULTICAST_ADDRESS), 0), null);
+                socket.setSoTimeout(SO_TIMEOUT);
+                logger.info("discovery " + NetPoint.MULTICAST_ADDRESS + ":" + NetPoint.MULTICAST_PORT + " started");
+                byte[] buf = new byte[8*1024];
+                long lastEviction = System.currentTimeMillis();
+                while (true) {
+                    DatagramPacket pckt = new DatagramPacket(buf, buf.length);
+                    try {
+                        socket.receive(pckt);
+                        announce(new String(buf, 0, pckt.getLength()), System.currentTimeMillis());
+                    } catch (SocketTimeoutException e) {
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastEviction >= SO_TIMEOUT) {
+                        evict(now);
+                        lastEviction = now;
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("discovery - " + e.toString());
+                try {
+                    Thread.sleep(SO_TIMEOUT);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the probes and takes in the unicast answers, on a port of its own so that they do
+     * not go to whichever of the sockets of the multicast port the system picks.
+     */
+    private void answers() {
+        while (true) {
+            try (MulticastSocket socket = new MulticastSocket()) {
+                probes = socket;
+                byte[] buf = new byte[8*1024];
+                while (true) {
+                    DatagramPacket pckt = new DatagramPacket(buf, buf.length);
+                    socket.receive(pckt);
+                    announce(new String(buf, 0, pckt.getLength(), StandardCharsets.UTF_8), System.currentTimeMillis());
+                }
+            } catch (IOException e) {
+                probes = null;
+                logger.error("discovery probe - " + e.toString());
+                try {
+                    Thread.sleep(SO_TIMEOUT);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes in mnc,tag,host:port...[,tags=tag;tag...][,host=id,unix=path][,load=...]; a host of many
+     * services lists all of their tags in the tags field, one on this machine its Unix socket.
+     * The same with mnl instead of mnc is a goodbye: the endpoints go at once.
+     */
+    void announce(String announce, long now) {
+        List<String> published = new ArrayList<>();
+        synchronized (this) {
+            update(announce, now, published);
+        }
+        notifyListeners(published);
+    }
+
+    private void update(String announce, long now, List<String> published) {
+        String[] tags = announce.split(",");
+        if (tags.length < 3) return;
+        if (tags[0].equals("mnl")) {
+            leave(tags, published);
+            return;
+        }
+        if (!tags[0].equals("mnc")) return;
+        Load load = Load.UNKNOWN;
+        String[] services = {tags[1]};
+        String machine = null;
+        String unix = null;
+        for (int i = 2; i < tags.length; i++) {
+            if (tags[i].startsWith(Load.FIELD)) load = Load.parse(tags[i]);
+            if (tags[i].startsWith(NetHost.TAGS_FIELD)) services = tags[i].substring(NetHost.TAGS_FIELD.length()).split(";");
+            if (tags[i].startsWith(NetHost.HOST_FIELD)) machine = tags[i].substring(NetHost.HOST_FIELD.length());
+            if (tags[i].startsWith(NetHost.UNIX_FIELD)) unix = tags[i].substring(NetHost.UNIX_FIELD.length());
+        }
+        if (!Unix.HOST.equals(machine)) unix = null;
+        for (String service : services) {
+            Map<String,Long> endpoints = seen.computeIfAbsent(service, t -> new HashMap<>());
+            boolean added = false;
+            for (int i = 2; i < tags.length; i++) {
+                String[] hostPort = tags[i].split(":");
+                if (hostPort.length != 2) continue;
+                loads.put(tags[i], load);
+                if (unix != null) unixPaths.put(tags[i], unix);
+                else unixPaths.remove(tags[i]);
+                added |= endpoints.put(tags[i], now) == null;
+            }
+            if (added) {
+                logger.info("discovered server: " + service);
+                publish(service, endpoints, published);
+            }
+        }
+    }
+
+    private void leave(String[] tags, List<String> published) {
+        String[] services = {tags[1]};
+        for (int i = 2; i < tags.length; i++)
+            if (tags[i].startsWith(NetHost.TAGS_FIELD)) services = tags[i].substring(NetHost.TAGS_FIELD.length()).split(";");
+        for (String service : services) {
+            Map<String,Long> endpoints = seen.get(service);
+            if (endpoints == null) continue;
+            boolean removed = false;
+            for (int i = 2; i < tags.length; i++) removed |= endpoints.remove(tags[i]) != null;
+            if (removed) {
+                logger.info("service left: " + service);
+                publish(service, endpoints, published);
+            }
+        }
+        for (int i = 2; i < tags.length; i++) forget(tags[i]);
+    }
+
+    /**
+     * Drops the load and socket path of an endpoint no tag lists any more.
+     */
+    private void forget(String endpoint) {
+        for (Map<String,Long> endpoints : seen.values())
+            if (endpoints.containsKey(endpoint)) return;
+        loads.remove(endpoint);
+        unixPaths.remove(endpoint);
+    }
+
+    private void evict(long now) {
+        List<String> published = new ArrayList<>();
+        synchronized (this) {
+            expire(now, published);
+        }
+        notifyListeners(published);
+    }
+
+    private void expire(long now, List<String> published) {
+        for (Map.Entry<String,Map<String,Long>> e : seen.entrySet()) {
+            boolean removed = false;
+            for (Iterator<Map.Entry<String,Long>> it = e.getValue().entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String,Long> endpoint = it.next();
+                if (now - endpoint.getValue() <= TTL) continue;
+                it.remove();
+                forget(endpoint.getKey());
+                removed = true;
+            }
+            if (removed) publish(e.getKey(), e.getValue(), published);
+        }
+    }
+
+    private void publish(String tag, Map<String,Long> endpoints, List<String> published) {
+        Set<String> snapshot = Collections.unmodifiableSet(new HashSet<>(endpoints.keySet()));
+        snapshots.put(tag, snapshot);
+        synchronized (changed) {
+            changed.notifyAll();
+        }
+        published.add(tag);
+    }
+
+    /**
+     * Hands the listeners of the tags their current endpoints, outside the registry lock so that a
+     * listener may call back into the registry. Listeners of a tag are called by one thread at a
+     * time, and whichever comes last delivers the latest set.
+     */
+    private void notifyListeners(List<String> tags) {
+        for (String tag : tags) {
+            List<Consumer<Set<String>>> l = listeners.get(tag);
+            if (l == null) continue;
+            synchronized (l) {
+                Set<String> snapshot = endpoints(tag);
+                for (Consumer<Set<String>> listener : l) {
+                    try {
+                        listener.accept(snapshot);
+                    } catch (RuntimeException e) {
+                        logger.error("discovery listener - " + e.toString());
+                    }
+                }
+            }
+        }
+    }
+}
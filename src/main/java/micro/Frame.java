@@ -0,0 +1,176 @@
+package micro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary wire frame.
+ * <pre>
+ *  0  byte  magic
+ *  1  byte  version
+ *  2  byte  op
+ *  3  byte  flags
+ *  4  int   request id, echoed in the reply
+ *  8  int   type id, announced once per connection by a TYPE frame
+ * 12  int   payload length
+ * 16  ...   payload
+ * </pre>
+ * The magic byte is never a valid first byte of a text request, so a server can tell
+ * both protocols apart by the first byte of a connection. The flags of a HELLO hold the
+ * codec id, those of a request or reply the COMPRESSED bit, and a request that takes a
+ * streamed reply has the STREAM bit: its items come as CHUNK frames ended by END (or ERROR),
+ * as many as the CREDIT frames of the client allow. From version 2 on, a request with the
+ * DEADLINE bit starts its payload with an int: the milliseconds its client will still wait,
+ * counted from when the server reads the frame. It is never compressed with the rest.
+ * From version 3 on, a request or reply with the BATCH bit carries many items: an int count,
+ * then per item its type id, length and encoding, where type 0 is a null item and -1 one that
+ * failed, with the error message for encoding. The type field of the frame itself is 0.
+ */
+final class Frame {
+    final static byte MAGIC = (byte) 0xB5;
+    final static byte VERSION = 3;
+    // the first versions that understand the DEADLINE and BATCH bits
+    final static byte DEADLINE_VERSION = 2;
+    final static byte BATCH_VERSION = 3;
+    final static int HEADER_SIZE = 16;
+    final static int MAX_PAYLOAD = 64*1024*1024;
+
+    final static byte HELLO = 1;
+    final static byte TYPE = 2;
+    final static byte REPLY = 3;
+    final static byte ERROR = 4;
+    final static byte CHUNK = 5;
+    final static byte END = 6;
+    final static byte CREDIT = 7;
+    final static byte CANCEL = 8;
+    final static byte LOAD = 16;
+    final static byte SAVE = 17;
+    final static byte DELETE = 18;
+
+    final static byte COMPRESSED = 1;
+    final static byte STREAM = 2;
+    final static byte DEADLINE = 4;
+    final static byte BATCH = 8;
+
+    final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    final byte version;
+    final byte op;
+    final byte flags;
+    final int id;
+    final int type;
+    final ByteBuffer payload;
+    /**
+     * System.nanoTime() after which nobody waits for the reply, 0 if the client set no deadline.
+     */
+    long deadline;
+
+    Frame(byte version, byte op, byte flags, int id, int type, ByteBuffer payload) {
+        this.version = version;
+        this.op = op;
+        this.flags = flags;
+        this.id = id;
+        this.type = type;
+        this.payload = payload;
+    }
+
+    boolean isRequest() {
+        return op >= LOAD && op <= DELETE;
+    }
+
+    /**
+     * A frame that stays valid after the next read.
+     */
+    Frame copy() {
+        ByteBuffer b = ByteBuffer.allocate(payload.remaining());
+        b.put(payload.duplicate()).flip();
+        Frame f = new Frame(version, op, flags, id, type, b);
+        f.deadline = deadline;
+        return f;
+    }
+
+    /**
+     * Takes the budget off the payload of a request that was just read and turns it into a deadline.
+     */
+    Frame received() throws IOException {
+        if ((flags & DEADLINE) == 0 || !isRequest()) return this;
+        if (payload.remaining() < 4) throw new IOException("bad deadline");
+        int budget = Math.max(1, payload.getInt());
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+        return this;
+    }
+
+    boolean expired() {
+        return deadline != 0 && System.nanoTime() - deadline > 0;
+    }
+
+    static byte op(NetPoint.COMMANDS cmd) {
+        return (byte) (LOAD + cmd.ordinal());
+    }
+
+    static NetPoint.COMMANDS command(byte op) {
+        return NetPoint.COMMANDS.values()[op - LOAD];
+    }
+
+    static ByteBuffer header(byte op, byte flags, int id, int type, int length) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+        b.put(MAGIC).put(VERSION).put(op).put(flags).putInt(id).putInt(type).putInt(length);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Fills in the header at the start of a buffer whose payload follows it.
+     */
+    static void header(ByteBuffer b, byte op, byte flags, int id, int type) {
+        b.put(0, MAGIC).put(1, VERSION).put(2, op).put(3, flags)
+                .putInt(4, id).putInt(8, type).putInt(12, b.limit() - HEADER_SIZE);
+    }
+
+    /**
+     * Gives a pooled payload of {@link #parse} back once the frame is handled.
+     */
+    void release() {
+        BufferPool.release(payload);
+    }
+
+    /**
+     * Validates the header at the buffer position and returns the payload length.
+     */
+    static int check(ByteBuffer in) throws IOException {
+        int p = in.position();
+        if (in.get(p) != MAGIC) throw new IOException("bad frame magic");
+        int length = in.getInt(p + 12);
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("bad frame length " + length);
+        return length;
+    }
+
+    /**
+     * Takes one complete frame off a non-blocking read buffer, or returns null if it is not all there yet.
+     * The payload is copied into a pooled buffer so the frame can outlive the read buffer; see {@link #release()}.
+     */
+    static Frame parse(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE) return null;
+        int length = check(in);
+        if (in.remaining() < HEADER_SIZE + length) return null;
+        byte version = in.get(in.position() + 1);
+        byte op = in.get(in.position() + 2);
+        byte flags = in.get(in.position() + 3);
+        int id = in.getInt(in.position() + 4);
+        int type = in.getInt(in.position() + 8);
+        in.position(in.position() + HEADER_SIZE);
+        if (length == 0) return new Frame(version, op, flags, id, type, EMPTY).received();
+        ByteBuffer payload = BufferPool.acquire(length);
+        int end = in.limit();
+        in.limit(in.position() + length);
+        payload.put(in).flip();
+        in.limit(end);
+        try {
+            return new Frame(version, op, flags, id, type, payload).received();
+        } catch (IOException e) {
+            BufferPool.release(payload);
+            throw e;
+        }
+    }
+}
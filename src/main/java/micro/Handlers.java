@@ -0,0 +1,64 @@
+package micro;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A consumer made of one handler per request type and command:
+ * <pre>
+ * NetPoint.start(tag, 20, new Handlers()
+ *         .on(UserLocation.class, NetPoint.COMMANDS.LOAD, locations::find)
+ *         .on(UserLocation.class, NetPoint.COMMANDS.SAVE, locations::save));
+ * </pre>
+ * A service started with it only accepts the registered types. Binary connections resolve the
+ * handlers of a type once, when the client announces its type id, and requests of any other type
+ * or command are refused before their payload is decoded; no class is loaded by its wire name.
+ */
+public final class Handlers implements BiFunction<NetPoint.COMMANDS,Object,Object> {
+    private final Map<String,Type> byName = new ConcurrentHashMap<>();
+    private final Map<Class<?>,Type> byClass = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public <X> Handlers on(Class<X> type, NetPoint.COMMANDS cmd, Function<? super X,?> handler) {
+        Type t = byClass.computeIfAbsent(type, Type::new);
+        byName.put(type.getName(), t);
+        t.handlers.set(cmd.ordinal(), (Function<Object,Object>) handler);
+        return this;
+    }
+
+    /**
+     * The handlers of a type by its wire name, null if it is not registered.
+     */
+    Type type(String name) {
+        return byName.get(name);
+    }
+
+    public Object apply(NetPoint.COMMANDS cmd, Object o) {
+        Type t = byClass.get(o.getClass());
+        if (t == null) throw new IllegalArgumentException("unsupported type " + o.getClass().getName());
+        Function<Object,Object> handler = t.handler(cmd);
+        if (handler == null) throw new IllegalArgumentException(t.unsupported(cmd));
+        return handler.apply(o);
+    }
+
+    static final class Type {
+        final Class<?> cls;
+        private final AtomicReferenceArray<Function<Object,Object>> handlers =
+                new AtomicReferenceArray<>(NetPoint.COMMANDS.values().length);
+
+        Type(Class<?> cls) {
+            this.cls = cls;
+        }
+
+        Function<Object,Object> handler(NetPoint.COMMANDS cmd) {
+            return handlers.get(cmd.ordinal());
+        }
+
+        String unsupported(NetPoint.COMMANDS cmd) {
+            return "no " + cmd + " handler for " + cls.getName();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package micro;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hashing of request keys onto endpoints. Each endpoint owns many points of the ring,
+ * so an endpoint that joins or leaves moves only the keys next to its own points, about 1/n of
+ * them. A key goes to the first endpoint clockwise that carries no more than its share of the
+ * requests in flight (times {@link #BOUND}), which keeps one hot key range from swamping an
+ * instance while most keys still land where their data is cached.
+ */
+final class HashRing {
+    final static int VNODES = 160;
+    final static double BOUND = 1.25;
+
+    private final Set<String> endpoints;
+    private final TreeMap<Long,String> ring = new TreeMap<>();
+
+    HashRing(Collection<String> endpoints) {
+        this.endpoints = Collections.unmodifiableSet(new HashSet<>(endpoints));
+        for (String e : this.endpoints)
+            for (int i = 0; i < VNODES; i++) ring.put(hash(e + "#" + i), e);
+    }
+
+    Set<String> endpoints() {
+        return endpoints;
+    }
+
+    /**
+     * The endpoints in ring order from the key, those under the load bound first.
+     */
+    List<String> order(Object key) {
+        int n = endpoints.size();
+        if (n == 0) return Collections.emptyList();
+        Set<String> walk = new LinkedHashSet<>();
+        long h = hash(String.valueOf(key));
+        for (String e : ring.tailMap(h).values()) {
+            if (walk.size() == n) break;
+            walk.add(e);
+        }
+        for (String e : ring.headMap(h).values()) {
+            if (walk.size() == n) break;
+            walk.add(e);
+        }
+        long total = 0;
+        Map<String,Integer> loads = new HashMap<>();
+        for (String e : walk) {
+            int load = Balancer.outstanding(e).get();
+            loads.put(e, load);
+            total += load;
+        }
+        long capacity = (long) Math.ceil(BOUND * (total + 1) / n);
+        List<String> under = new ArrayList<>(n);
+        List<String> over = new ArrayList<>();
+        for (String e : walk) (loads.get(e) < capacity ? under : over).add(e);
+        under.addAll(over);
+        return under;
+    }
+
+    /**
+     * 64-bit FNV-1a with the murmur3 finalizer, stable across processes unlike hashCode().
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,66 @@
+package micro;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When a LOAD is worth a duplicate: after the given percentile of the recent latencies of its
+ * endpoint, and only while the budget lasts. Every LOAD adds the budget fraction of a token,
+ * every hedge takes a whole one, so hedges stay below that fraction of the requests however
+ * slow the service gets, with a burst of a few tokens at most.
+ */
+final class Hedging {
+    private final static long WINDOW = 10*1000;
+    private final static int MIN_SAMPLES = 20;
+    private final static long TOKEN = 1000;
+    private final static long MAX_TOKENS = 10*TOKEN;
+
+    private final double percentile;
+    private final long deposit;
+    private final Histogram recent = new Histogram();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private volatile long delay = -1;
+    private volatile long since = System.currentTimeMillis();
+
+    Hedging(double percentile, double budget) {
+        this.percentile = percentile;
+        this.deposit = Math.round(budget * TOKEN);
+    }
+
+    /**
+     * Nanoseconds to wait for the first reply before hedging, -1 while too few are known.
+     */
+    long delay() {
+        return delay;
+    }
+
+    void record(long nanos) {
+        recent.record(nanos);
+        if (recorded.incrementAndGet() % 16 != 0) return;
+        long n = recent.count();
+        if (n < MIN_SAMPLES) return;
+        delay = recent.percentile(percentile);
+        long now = System.currentTimeMillis();
+        if (now - since > WINDOW) {
+            since = now;
+            recent.reset();
+        }
+    }
+
+    void deposit() {
+        long t;
+        do {
+            t = tokens.get();
+            if (t >= MAX_TOKENS) return;
+        } while (!tokens.compareAndSet(t, Math.min(MAX_TOKENS, t + deposit)));
+    }
+
+    boolean withdraw() {
+        long t;
+        do {
+            t = tokens.get();
+            if (t < TOKEN) return false;
+        } while (!tokens.compareAndSet(t, t - TOKEN));
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package micro;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram. Buckets are log-linear, eight per power of two,
+ * so a percentile is off by at most 12.5%.
+ */
+class Histogram {
+    private final static int SUB = 8;
+    private final static int BUCKETS = (63 - 2) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) m = max.get();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    /**
+     * The upper bound of the bucket holding the given fraction of the values, 0 when empty.
+     */
+    long percentile(double p) {
+        long[] c = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += c[i] = counts.get(i);
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += c[i];
+            if (seen >= rank) return Math.min(lowest(i + 1) - 1, max.get());
+        }
+        return lowest(BUCKETS) - 1;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        sum.reset();
+        max.set(0);
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return (e - 2) * SUB + (int) ((v >>> (e - 3)) & (SUB - 1));
+    }
+
+    static long lowest(int index) {
+        if (index < SUB) return index;
+        int e = index / SUB + 2;
+        return (long) (SUB + index % SUB) << (e - 3);
+    }
+}
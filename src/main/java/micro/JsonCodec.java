@@ -0,0 +1,71 @@
+package micro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Jackson codec. One mapper is shared by all connections and the readers and writers
+ * are resolved once per class.
+ */
+public class JsonCodec implements Codec {
+    public final static JsonCodec JSON = new JsonCodec();
+
+    private final byte id;
+    private final String name;
+    private final ObjectMapper mapper;
+    private final Map<Class<?>,ObjectReader> readers = new ConcurrentHashMap<>();
+    private final Map<Class<?>,ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    public JsonCodec() {
+        this(new ObjectMapper());
+    }
+
+    public JsonCodec(ObjectMapper mapper) {
+        this((byte) 0, "json", mapper);
+    }
+
+    protected JsonCodec(byte id, String name, ObjectMapper mapper) {
+        this.id = id;
+        this.name = name;
+        this.mapper = mapper;
+    }
+
+    public byte id() {
+        return id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    ObjectReader reader(Class<?> type) {
+        return readers.computeIfAbsent(type, mapper::readerFor);
+    }
+
+    ObjectWriter writer(Class<?> type) {
+        return writers.computeIfAbsent(type, mapper::writerFor);
+    }
+
+    public byte[] encode(Object o) throws IOException {
+        return writer(o.getClass()).writeValueAsBytes(o);
+    }
+
+    @Override
+    public void encode(Object o, OutputStream out) throws IOException {
+        writer(o.getClass()).writeValue(out, o);
+    }
+
+    public <T> T decode(ByteBuffer data, Class<T> type) throws IOException {
+        if (data.hasArray())
+            return reader(type).readValue(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        return reader(type).readValue(new ByteBufferBackedInputStream(data.duplicate()));
+    }
+}
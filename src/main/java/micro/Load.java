@@ -0,0 +1,64 @@
+package micro;
+
+/**
+ * Load signals a {@link NetPoint} announces with its endpoints, as the field
+ * "load=active/max/queued/p99" which has no ':' so older clients skip it as an address.
+ */
+public final class Load {
+    final static String FIELD = "load=";
+    final static Load UNKNOWN = new Load(0, 0, 0, 0);
+
+    /** open connections */
+    public final int active;
+    public final int maxClients;
+    /** requests received and not answered yet */
+    public final int queued;
+    /** 99th percentile of the recent service time in microseconds */
+    public final long p99;
+
+    Load(int active, int maxClients, int queued, long p99) {
+        this.active = active;
+        this.maxClients = maxClients;
+        this.queued = queued;
+        this.p99 = p99;
+    }
+
+    /**
+     * Expected cost of one more request: latency times the work ahead of it, raised with
+     * the share of the connections in use. The outstanding requests are the caller's own.
+     */
+    double cost(int outstanding) {
+        double utilization = maxClients > 0 ? (double) active / maxClients : 0;
+        return (p99 + 1) * (queued + outstanding + 1) * (1 + utilization);
+    }
+
+    /**
+     * Whether clients would weigh the host differently than with the load announced before:
+     * it filled up or freed, or its connections, queue or latency moved by a good part.
+     */
+    boolean moved(Load before) {
+        if ((active >= maxClients) != (before.active >= before.maxClients)) return true;
+        if (Math.abs(active - before.active) > Math.max(1, maxClients / 4)) return true;
+        if (Math.abs(queued - before.queued) > Math.max(4, before.queued / 4)) return true;
+        // service times under 100us count as idle
+        return p99 > 2 * before.p99 + 100 || before.p99 > 2 * p99 + 100;
+    }
+
+    String format() {
+        return FIELD + active + "/" + maxClients + "/" + queued + "/" + p99;
+    }
+
+    static Load parse(String field) {
+        String[] v = field.substring(FIELD.length()).split("/");
+        try {
+            return new Load(Integer.parseInt(v[0]), Integer.parseInt(v[1]), Integer.parseInt(v[2]), Long.parseLong(v[3]));
+        } catch (RuntimeException e) {
+            return UNKNOWN;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+}
@@ -0,0 +1,289 @@
+package micro;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a {@link NetPoint} or of the {@link NetClient}s of a tag.
+ * Recording is lock-free and does not allocate. Registered in JMX as
+ * micro:type=NetPoint|NetClient,tag=...,name=summary plus one bean per command.
+ */
+public class Metrics implements MetricsMXBean {
+    private final static Map<String,Metrics> clients = new ConcurrentHashMap<>();
+
+    public interface TimerMXBean {
+        long getCount();
+        long getErrors();
+        double getMeanMicros();
+        double getP50Micros();
+        double getP90Micros();
+        double getP99Micros();
+        double getP999Micros();
+        double getMaxMicros();
+        double getTotalMicros();
+    }
+
+    private final String type;
+    private final String tag;
+    private final Timer[] commands = new Timer[NetPoint.COMMANDS.values().length];
+    private final Timer encode = new Timer();
+    private final Timer decode = new Timer();
+    private final Timer compress = new Timer();
+    private final Timer decompress = new Timer();
+    private final LongAdder uncompressed = new LongAdder();
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder deadlinesMissed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final long started = System.nanoTime();
+    IntSupplier connections = () -> 0;
+    IntSupplier queued = () -> 0;
+    IntSupplier workers = () -> -1;
+    IntSupplier busyWorkers = () -> -1;
+
+    Metrics(String type, String tag) {
+        this.type = type;
+        this.tag = tag;
+        for (int i = 0; i < commands.length; i++) commands[i] = new Timer();
+    }
+
+    /**
+     * The registered metrics shared by all clients of the tag.
+     */
+    static Metrics client(String tag) {
+        return clients.computeIfAbsent(tag, t -> new Metrics("NetClient", t).register());
+    }
+
+    public Timer command(NetPoint.COMMANDS cmd) {
+        return commands[cmd.ordinal()];
+    }
+
+    public Timer encode() {
+        return encode;
+    }
+
+    public Timer decode() {
+        return decode;
+    }
+
+    public Timer compress() {
+        return compress;
+    }
+
+    public Timer decompress() {
+        return decompress;
+    }
+
+    /**
+     * Counts a payload that went through the compressor, at its original size if it did not shrink.
+     */
+    void compressed(int before, int after) {
+        uncompressed.add(before);
+        compressed.add(after);
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Counts a duplicate request sent to a second endpoint, and whether its reply came first.
+     */
+    void hedged(boolean won) {
+        if (won) hedgesWon.increment();
+        else hedged.increment();
+    }
+
+    void deadlineMissed() {
+        deadlinesMissed.increment();
+    }
+
+    /**
+     * Counts a request the server dropped because its client had stopped waiting.
+     */
+    void expired() {
+        expired.increment();
+    }
+
+    public long getRequests() {
+        long n = 0;
+        for (Timer t : commands) n += t.getCount();
+        return n;
+    }
+
+    public long getErrors() {
+        long n = 0;
+        for (Timer t : commands) n += t.getErrors();
+        return n;
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getHedged() {
+        return hedged.sum();
+    }
+
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    public long getDeadlinesMissed() {
+        return deadlinesMissed.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public double getRequestsPerSecond() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return seconds > 0 ? getRequests() / seconds : 0;
+    }
+
+    public int getConnections() {
+        return connections.getAsInt();
+    }
+
+    public int getQueued() {
+        return queued.getAsInt();
+    }
+
+    public int getWorkers() {
+        return workers.getAsInt();
+    }
+
+    public int getBusyWorkers() {
+        return busyWorkers.getAsInt();
+    }
+
+    public double getEncodeMeanMicros() {
+        return encode.getMeanMicros();
+    }
+
+    public double getDecodeMeanMicros() {
+        return decode.getMeanMicros();
+    }
+
+    public long getCompressedPayloads() {
+        return compress.getCount();
+    }
+
+    public long getBytesSavedByCompression() {
+        return uncompressed.sum() - compressed.sum();
+    }
+
+    public double getCompressionRatio() {
+        long before = uncompressed.sum();
+        return before == 0 ? 1 : (double) compressed.sum() / before;
+    }
+
+    public double getCompressMillis() {
+        return compress.getTotalMicros() / 1000;
+    }
+
+    public double getDecompressMillis() {
+        return decompress.getTotalMicros() / 1000;
+    }
+
+    Metrics register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, name("name", "summary"), this);
+            for (NetPoint.COMMANDS cmd : NetPoint.COMMANDS.values())
+                register(server, name("command", cmd.name()), command(cmd));
+        } catch (JMException e) {
+            NetPoint.logger.error("metrics " + tag + " - " + e.toString());
+        }
+        return this;
+    }
+
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name("name", "summary"));
+            for (NetPoint.COMMANDS cmd : NetPoint.COMMANDS.values())
+                server.unregisterMBean(name("command", cmd.name()));
+        } catch (JMException e) {
+            NetPoint.logger.error("metrics " + tag + " - " + e.toString());
+        }
+    }
+
+    private ObjectName name(String key, String value) throws JMException {
+        return new ObjectName("micro:type=" + type + ",tag=" + ObjectName.quote(tag) + "," + key + "=" + value);
+    }
+
+    // a restarted NetPoint of the same tag takes over the names
+    private static void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (server.isRegistered(name)) server.unregisterMBean(name);
+        server.registerMBean(bean, name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder(type).append(' ').append(tag)
+                .append(" requests=").append(getRequests()).append(" errors=").append(getErrors())
+                .append(" rejected=").append(getRejected());
+        for (NetPoint.COMMANDS cmd : NetPoint.COMMANDS.values())
+            b.append(' ').append(cmd).append(" p99=").append(command(cmd).getP99Micros()).append("us");
+        return b.toString();
+    }
+
+    /**
+     * Count, failures and latency distribution of one kind of operation, recorded in nanoseconds.
+     */
+    public static class Timer implements TimerMXBean {
+        private final Histogram latency = new Histogram();
+        private final LongAdder errors = new LongAdder();
+
+        void record(long nanos, boolean failed) {
+            latency.record(nanos);
+            if (failed) errors.increment();
+        }
+
+        public long getCount() {
+            return latency.count();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public double getMeanMicros() {
+            return latency.mean() / 1000;
+        }
+
+        public double getP50Micros() {
+            return latency.percentile(0.5) / 1000.0;
+        }
+
+        public double getP90Micros() {
+            return latency.percentile(0.9) / 1000.0;
+        }
+
+        public double getP99Micros() {
+            return latency.percentile(0.99) / 1000.0;
+        }
+
+        public double getP999Micros() {
+            return latency.percentile(0.999) / 1000.0;
+        }
+
+        public double getMaxMicros() {
+            return latency.max() / 1000.0;
+        }
+
+        public double getTotalMicros() {
+            return latency.sum() / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package micro;
+
+/**
+ * JMX view of the {@link Metrics} summary; per-command latencies are separate {@link Metrics.TimerMXBean}s.
+ */
+public interface MetricsMXBean {
+    long getRequests();
+    long getErrors();
+    long getRejected();
+    long getHedged();
+    long getHedgesWon();
+    long getDeadlinesMissed();
+    long getExpired();
+    double getRequestsPerSecond();
+    int getConnections();
+    int getQueued();
+    int getWorkers();
+    int getBusyWorkers();
+    double getEncodeMeanMicros();
+    double getDecodeMeanMicros();
+    long getCompressedPayloads();
+    long getBytesSavedByCompression();
+    double getCompressionRatio();
+    double getCompressMillis();
+    double getDecompressMillis();
+}
@@ -1,87 +1,238 @@
 package micro;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.Socket;
-import java.util.HashSet;
-import java.util.List;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NetClient<T> {
     public static final Logger logger = LoggerFactory.getLogger(NetClient.class);
 
+    public enum BALANCING {
+        FIRST_AVAILABLE,ROUND_ROBIN,POWER_OF_TWO,LEAST_OUTSTANDING
+    }
+
     private final static long TIMEOUT = 20*1000;
+    private final static int HANDSHAKE_TIMEOUT = 5*1000;
+    private final static int FAILOVER_MISSES = 2;
+    private final static long TEXT_RETRY = 60*1000;
+    private final static Map<String, Long> textServers = new ConcurrentHashMap<>();
     private Set<String> servers;
-    private int currentServer;
+    private String currentServer;
+    private BALANCING balancing=BALANCING.POWER_OF_TWO;
+    private NetPoint.COMPRESSION compression=NetPoint.COMPRESSION.NONE;
+    private int compressionThreshold=NetPoint.COMPRESSION_THRESHOLD;
+    private long deadline;
+    private Hedging hedging;
+    private NetClient<T> hedge;
+    private int missed;
     private String tag;
+    private long timeout;
+    private Codec codec;
     private boolean wasError;
-    private  Socket socket;
+    private  SocketChannel socket;
+    private Protocol protocol;
+    private volatile Connection connection;
+    private final AtomicInteger nextId=new AtomicInteger();
+    private final Metrics metrics;
+    private final Tracer tracer;
+    private int sent;
+    private int received;
     private BufferedReader input;
     private OutputStream output;
 
     public NetClient(String tag) {
-        this.tag=tag;
-        this.wasError=false;
-        this.currentServer=0;
-        discoverServer(TIMEOUT);
+        this(tag,TIMEOUT,JsonCodec.JSON);
     }
 
     public NetClient(String tag,long timeout) {
+        this(tag,timeout,JsonCodec.JSON);
+    }
+
+    public NetClient(String tag,Codec codec) {
+        this(tag,TIMEOUT,codec);
+    }
+
+    /**
+     * Does not block: the endpoints come from the {@link DiscoveryRegistry}, and {@link #connectNext}
+     * waits up to the timeout (or the default one for 0) only while none of the tag is known yet.
+     */
+    public NetClient(String tag,long timeout,Codec codec) {
         this.tag=tag;
+        this.codec=codec;
+        this.timeout=timeout>0 ? timeout : TIMEOUT;
+        this.metrics=Metrics.client(tag);
+        this.tracer=Tracer.client(tag);
         this.wasError=false;
-        this.currentServer=0;
-        discoverServer(timeout);
+        DiscoveryRegistry.get();
+    }
+
+    NetClient(String tag,Codec codec,Set<String> servers) {
+        this.tag=tag;
+        this.codec=codec;
+        this.metrics=Metrics.client(tag);
+        this.tracer=Tracer.client(tag);
+        this.servers=servers;
+    }
+
+    /**
+     * How {@link #connectNext} picks the endpoint, by default the cheaper of two random ones.
+     */
+    public NetClient<T> balancing(BALANCING balancing) {
+        this.balancing=balancing;
+        return this;
+    }
+
+    /**
+     * Proposes a compression to the servers connected from now on; requests and replies of at
+     * least threshold bytes are compressed if the server agrees. Servers that predate
+     * compression, or turned it down, are talked to uncompressed.
+     */
+    public NetClient<T> compression(NetPoint.COMPRESSION compression, int threshold) {
+        this.compression=compression;
+        this.compressionThreshold=threshold;
+        return this;
+    }
+
+    /**
+     * Fails requests that take longer than millis with a SocketTimeoutException, 0 for no limit.
+     * A binary connection stays usable and a late reply is dropped; a text one is closed. After
+     * two misses in a row {@link #send} fails over to another endpoint. Binary requests carry
+     * the deadline, so a server skips their work once their caller has given up.
+     */
+    public NetClient<T> deadline(long millis) {
+        this.deadline=millis;
+        NetClient<T> h=hedge;
+        if (h!=null) h.deadline(millis);
+        return this;
+    }
+
+    /**
+     * Sends a LOAD that is not answered within the given percentile of recent LOAD latencies
+     * (0.95 say) once more to a second endpoint, and takes whichever reply comes first. The
+     * budget bounds the duplicates to that fraction of the LOADs, so a slow service does not
+     * get twice the load. Only LOADs are hedged, as they are the requests safe to repeat, and
+     * not in batches, which the hedge endpoint may not know.
+     */
+    public NetClient<T> hedging(double percentile, double budget) {
+        this.hedging=new Hedging(percentile,budget);
+        return this;
+    }
+
+    Set<String> servers() {
+        if (servers!=null) return servers;
+        return DiscoveryRegistry.get().await(tag,timeout);
+    }
+
+    /**
+     * Shared by all clients of the tag in this process.
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Shared by all clients of the tag in this process, like the metrics.
+     */
+    public Tracer tracer() {
+        return tracer;
+    }
+
+    /**
+     * Connects through the Unix socket the endpoint announced if it runs on this machine, over TCP otherwise.
+     */
+    void connect(String endpoint) throws IOException {
+        String unix = DiscoveryRegistry.get().unix(endpoint);
+        if (unix != null && Unix.SUPPORTED) {
+            try {
+                openUnix(Paths.get(unix));
+                currentServer = endpoint;
+                logger.debug("client {} connected through {}", endpoint, unix);
+                return;
+            } catch (IOException e) {
+                logger.debug("client {} falls back to tcp - {}", unix, e.toString());
+            }
+        }
+        String[] hostPort = endpoint.split(":");
+        open(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+        currentServer = endpoint;
+        logger.debug("client {} connected", endpoint);
+    }
+
+    /**
+     * Cheap liveness check that leaves the channel alone: a connection is dead once closed, or
+     * once its reader or a synchronous call found it closed by the peer.
+     */
+    boolean isAlive() {
+        SocketChannel ch=socket;
+        if (ch==null || !ch.isOpen()) return false;
+        Connection c=connection;
+        return c==null || !c.broken;
     }
 
     public void disconnect() {
+        NetClient<T> h=hedge;
+        hedge=null;
+        if (h!=null) h.disconnect();
         try {
             if (socket!=null) {
-                input.close();
-                output.close();
-                socket.close();
+                if (input!=null) input.close();
+                if (output!=null) output.close();
                 socket.close();
                 socket = null;
-                logger.info("client disconnected");
+                input = null;
+                output = null;
+                protocol = null;
+                connection = null;
+                logger.debug("client disconnected");
             }
         }catch (IOException e) {
             logger.error(e.toString());
         }
     }
 
+    /**
+     * Connects to the endpoint the balancing strategy ranks best; called again, it moves
+     * on to another one, trying the previous endpoint last.
+     */
     public NetClient<T> connectNext() {
-        if (currentServer>0) {
-            disconnect();
-            if (currentServer >= servers.size() - 1)
-                currentServer = 0;
-        }
-        List<String>  list=servers.stream().collect(Collectors.toList());
+        String previous=currentServer;
+        if (previous!=null) disconnect();
         int ntry=0;
         while(ntry<5) {
-                for (int i = currentServer; i < list.size(); i++) {
-                    try {
-                        String addr = list.get(i);
-                        String[] hostPort = addr.split(":");
-                        if (hostPort.length != 2) continue;
-                        socket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
-                        input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        output = socket.getOutputStream();
-                        logger.info("client " + hostPort[0] + ":" + hostPort[1] + "(" + i + ") connected");
-                        currentServer = i + 1;
-                        return this;
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        logger.error(e.toString());
-                    }
+            for (String addr : Balancer.order(balancing, servers(), previous)) {
+                try {
+                    if (addr.split(":").length != 2) continue;
+                    connect(addr);
+                    return this;
+                } catch (IOException e) {
+                    logger.error(addr + " - " + e.toString());
                 }
+            }
             try {
-                Thread.sleep(1000);
+                Thread.sleep(Math.min(1000, 100L << ntry));
             }catch (InterruptedException e){}
             ntry++;
         }
@@ -90,6 +241,98 @@ public class NetClient<T> {
         return this;
     }
 
+    /**
+     * Opens a connection and negotiates the binary protocol. A server that answers the hello
+     * with anything but a frame is remembered as text-only and gets a fresh connection in text
+     * mode. One that hangs up on it may be a text server choking on the greeting, or a binary one
+     * shedding load: the connect fails so failover moves on, and the endpoint is tried in text
+     * for a while.
+     */
+    private void open(InetSocketAddress addr) throws IOException {
+        String key = addr.getHostString() + ":" + addr.getPort();
+        socket = SocketChannel.open(addr);
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        socket.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        Long until = textServers.get(key);
+        if (until != null && until < System.currentTimeMillis()) {
+            textServers.remove(key, until);
+            until = null;
+        }
+        if (until == null) {
+            protocol = new Protocol(codec, compression, compressionThreshold, metrics);
+            SocketChannel ch = socket;
+            protocol.sink(buffers -> Protocol.write(ch, buffers));
+            try {
+                protocol.hello(0, tag);
+                // read through the socket adaptor, plain channel reads ignore SO_TIMEOUT
+                socket.socket().setSoTimeout(HANDSHAKE_TIMEOUT);
+                InputStream in = socket.socket().getInputStream();
+                int first = in.read();
+                if (first < 0) {
+                    textServers.putIfAbsent(key, System.currentTimeMillis() + TEXT_RETRY);
+                    throw new EOFException(key + " closed the connection on hello");
+                }
+                if (first == (Frame.MAGIC & 0xff)) {
+                    protocol.prime(ByteBuffer.wrap(new byte[]{Frame.MAGIC}));
+                    Frame f = protocol.read(Channels.newChannel(in));
+                    if (f != null && f.op == Frame.HELLO) {
+                        protocol.accept(f);
+                        connection = new Connection(socket, protocol);
+                        return;
+                    }
+                    if (f != null && f.op == Frame.ERROR)
+                        throw new ServerException(key + " " + StandardCharsets.UTF_8.decode(f.payload));
+                    throw new EOFException(key + " broke off the handshake");
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            logger.info("client " + key + " falls back to text protocol");
+            textServers.put(key, Long.MAX_VALUE);
+            socket.close();
+            socket = SocketChannel.open(addr);
+        }
+        protocol = null;
+        // the socket adaptor honours SO_TIMEOUT, which is how the deadline applies to text replies
+        input = new BufferedReader(new InputStreamReader(socket.socket().getInputStream()));
+        output = Channels.newOutputStream(socket);
+    }
+
+    /**
+     * The binary protocol over a Unix socket; servers that announce one all speak it, so there is no text fallback.
+     */
+    private void openUnix(Path path) throws IOException {
+        socket = Unix.connect(path);
+        protocol = new Protocol(codec, compression, compressionThreshold, metrics);
+        SocketChannel ch = socket;
+        protocol.sink(buffers -> Protocol.write(ch, buffers));
+        try {
+            protocol.hello(0, tag);
+            // no socket adaptor to time the read with, so wait for it on a selector
+            ch.configureBlocking(false);
+            try (Selector selector = Selector.open()) {
+                ch.register(selector, SelectionKey.OP_READ);
+                if (selector.select(HANDSHAKE_TIMEOUT) == 0) throw new SocketTimeoutException(path + " handshake timed out");
+            }
+            ch.configureBlocking(true);
+            Frame f = protocol.read(ch);
+            if (f != null && f.op == Frame.HELLO) {
+                protocol.accept(f);
+                connection = new Connection(ch, protocol);
+                return;
+            }
+            if (f != null && f.op == Frame.ERROR)
+                throw new ServerException(path + " " + StandardCharsets.UTF_8.decode(f.payload));
+            throw new EOFException(path + " closed on hello");
+        } catch (IOException e) {
+            ch.close();
+            socket = null;
+            protocol = null;
+            throw e;
+        }
+    }
+
     public T load(T o) {
         return (T)send(NetPoint.COMMANDS.LOAD,(T)o,false);
     }
@@ -106,32 +349,71 @@ public class NetClient<T> {
         return (T)send(NetPoint.COMMANDS.DELETE,(T)o,false);
     }
 
+    /**
+     * Loads many objects in one round trip: one frame goes out with all of them, one comes back
+     * with the results in the same order. Items fail one by one, see {@link Batch}; when the
+     * request fails as a whole, all of them do. Servers that predate batches are sent the
+     * items one at a time.
+     */
+    public Batch<T> loadAll(Collection<T> items) {
+        return batch(NetPoint.COMMANDS.LOAD,items);
+    }
+
+    public Batch<T> saveAll(Collection<T> items) {
+        return batch(NetPoint.COMMANDS.SAVE,items);
+    }
+
+    public Batch<T> deleteAll(Collection<T> items) {
+        return batch(NetPoint.COMMANDS.DELETE,items);
+    }
+
+    private Batch<T> batch(NetPoint.COMMANDS cmd,Collection<T> items) {
+        Protocol p=protocol;
+        if (p==null || p.version<Frame.BATCH_VERSION) {
+            Object[] values=new Object[items.size()];
+            String[] errors=new String[items.size()];
+            int i=0;
+            for (T o:items) {
+                try {
+                    values[i]=call(cmd,o);
+                } catch (ServerException e) {
+                    errors[i]=e.getMessage();
+                } catch (IOException e) {
+                    logger.error(e.toString());
+                    Arrays.fill(errors,i,errors.length,e.toString());
+                    break;
+                }
+                i++;
+            }
+            return new Batch<>(values,errors);
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            Batch<T> reply=(Batch<T>) call(cmd,new Batch.Items(items));
+            return reply;
+        } catch (IOException e) {
+            logger.error(e.toString());
+            return Batch.failed(items.size(),e.toString());
+        }
+    }
+
     public Object send(NetPoint.COMMANDS cmd,Object o,boolean toClose) {
         try {
             if (wasError) return null;
-            String json = new ObjectMapper().writeValueAsString(o);
-            ByteArrayOutputStream bo = new ByteArrayOutputStream();
-            bo.write((cmd.name()+",").getBytes());
-            bo.write((o.getClass().getName()+"\n").getBytes());
-            bo.write((json+"\n").getBytes());
-            output.write(bo.toByteArray());
-            logger.info("sent:"+o.getClass().getName()+","+json);
-            String clsname=input.readLine();
-            json=input.readLine();
-            if (clsname==null  || json==null) {
-               logger.error("send - "+clsname+","+json);
-                return null;
-            }
-            try {
-                Object reply=new ObjectMapper().readValue(json, Class.forName(clsname));
-                logger.info("read:"+reply.getClass().getName());
-                return reply;
-            }catch(ClassNotFoundException e) {
+            Object reply=call(cmd,o);
+            missed=0;
+            return reply;
+        }catch(SocketTimeoutException e){
+            logger.error(e.toString());
+            if (socket==null || ++missed>=FAILOVER_MISSES) {
+                missed=0;
+                connectNext();
             }
         }catch(IOException e){
-            e.printStackTrace();
-
             logger.error(e.toString());
+            // the server closed the connection, the next request goes to a new one
+            Connection c=connection;
+            if (c!=null && c.broken) connectNext();
         } finally {
             if (toClose)
                 disconnect();
@@ -139,33 +421,466 @@ public class NetClient<T> {
         return null;
     }
 
-    private void discoverServer(long timeout) {
+    /**
+     * Synchronous request that reports failures instead of logging them. A {@link ServerException}
+     * leaves the connection usable, any other IOException means it is broken.
+     */
+    Object call(NetPoint.COMMANDS cmd,Object o) throws IOException {
+        if (socket==null) throw new IOException("not connected");
+        // a batch is not hedged, the hedge endpoint may predate batches
+        if (protocol!=null && hedging!=null && cmd==NetPoint.COMMANDS.LOAD && !(o instanceof Batch.Items)) return hedged(o);
+        Connection c=connection;
+        if (c!=null && c.broken) throw new EOFException("connection closed");
+        // the reply is read on this thread unless a reader serves the connection
+        if (c!=null && (deadline>0 || !c.claim())) return await(sendAsync(cmd,o));
+        AtomicInteger outstanding=Balancer.outstanding(currentServer);
+        outstanding.incrementAndGet();
+        long start=System.nanoTime();
+        String error="aborted";
+        sent=-1;
+        received=-1;
         try {
-            MulticastSocket socket = new MulticastSocket(NetPoint.MULTICAST_PORT);
-            InetAddress group = InetAddress.getByName(NetPoint.MULTICAST_ADDRESS);
-            socket.joinGroup(group);
-            long start=System.currentTimeMillis();
-            while(System.currentTimeMillis()-start<=timeout) {
-                byte[] buf = new byte[1024];
-                DatagramPacket pckt = new DatagramPacket(buf, buf.length);
-                socket.receive(pckt);
-                byte[] d=pckt.getData();
-                int len=pckt.getLength();
-                String announce =  new String(d, 0, len);
-                String[] tags=announce.split(",");
-                if (tags==null || tags.length<3) continue;
-                if (!tags[0].equals("mnc")
-                        || !tags[1].equals(tag)) continue;
-                logger.info("discovered server: "+tag);
-                servers=new HashSet<>();
-                for(int i=1;i< tags.length;i++) servers.add(tags[i]);
-                try{
-                Thread.sleep(100); } catch(InterruptedException e){}
-            }
-            socket.leaveGroup(group);
-            socket.close();
-        }catch(IOException e){
-            logger.error(e.toString());
+            Object reply=c==null ? sendText(cmd,o) : exchange(c,cmd,o);
+            error=null;
+            return reply;
+        } catch (IOException e) {
+            error=e.toString();
+            if (e instanceof SocketTimeoutException) {
+                metrics.deadlineMissed();
+                disconnect();
+            } else if (c!=null && !(e instanceof ServerException)) {
+                c.broken=true;
+            }
+            throw e;
+        } finally {
+            if (c!=null) c.release();
+            outstanding.decrementAndGet();
+            long nanos=System.nanoTime()-start;
+            metrics.command(cmd).record(nanos,error!=null);
+            tracer.trace(currentServer,cmd,o.getClass().getName(),sent,received,nanos,error);
+        }
+    }
+
+    private Object exchange(Connection c,NetPoint.COMMANDS cmd,Object o) throws IOException {
+        Protocol p=c.protocol;
+        int id=nextId.incrementAndGet();
+        ByteBuffer frame = encode(p,o,0);
+        sent=frame.remaining()-Frame.HEADER_SIZE;
+        p.send(Frame.op(cmd), flags(o), id, type(o), frame);
+        while (true) {
+            Frame f = p.read(c.channel);
+            if (f == null) throw new EOFException("connection closed");
+            if (f.op == Frame.TYPE) {
+                p.accept(f);
+                continue;
+            }
+            if (f.id != id) continue;
+            received=f.payload.remaining();
+            return reply(p, f);
+        }
+    }
+
+    private static Object await(CompletableFuture<?> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof TimeoutException) throw new SocketTimeoutException("deadline exceeded");
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * A LOAD that goes to a second endpoint as well when the first one is slower than usual and
+     * the budget allows it; the first reply wins, the other one is dropped when it arrives.
+     */
+    private Object hedged(Object o) throws IOException {
+        NetPoint.COMMANDS cmd=NetPoint.COMMANDS.LOAD;
+        hedging.deposit();
+        long start=System.nanoTime();
+        CompletableFuture<Object> first=sendAsync(cmd,o);
+        first.thenRun(() -> hedging.record(System.nanoTime()-start));
+        long delay=hedging.delay();
+        if (delay<0) return await(first);
+        try {
+            return first.get(delay,TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+        } catch (InterruptedException | ExecutionException e) {
+            return await(first);
+        }
+        NetClient<T> h;
+        if (!hedging.withdraw() || (h=hedgeClient())==null) return await(first);
+        metrics.hedged(false);
+        CompletableFuture<Object> second=h.sendAsync(cmd,o);
+        CompletableFuture<Object> reply=new CompletableFuture<>();
+        AtomicInteger failures=new AtomicInteger();
+        AtomicBoolean settled=new AtomicBoolean();
+        first.whenComplete((r,e) -> {
+            if (e==null) {
+                if (settled.compareAndSet(false,true)) reply.complete(r);
+            } else if (failures.incrementAndGet()==2) reply.completeExceptionally(e);
+        });
+        second.whenComplete((r,e) -> {
+            if (e==null) {
+                if (!settled.compareAndSet(false,true)) return;
+                metrics.hedged(true);
+                reply.complete(r);
+            } else if (failures.incrementAndGet()==2) reply.completeExceptionally(e);
+        });
+        return await(reply);
+    }
+
+    /**
+     * Endpoints announced together belong to one host, and share the load parsed from the announcement.
+     */
+    private static boolean sameHost(String a, String b) {
+        if (a.equals(b)) return true;
+        Load load=DiscoveryRegistry.get().load(a);
+        return load!=Load.UNKNOWN && load==DiscoveryRegistry.get().load(b);
+    }
+
+    /**
+     * The connection hedges go to, kept open to the best ranked endpoint other than the current one.
+     */
+    private synchronized NetClient<T> hedgeClient() {
+        NetClient<T> h=hedge;
+        if (h!=null && h.isAlive() && !sameHost(currentServer,h.currentServer)) return h;
+        hedge=null;
+        if (h!=null) h.disconnect();
+        for (String addr : Balancer.order(balancing, servers(), currentServer)) {
+            if (sameHost(addr,currentServer) || addr.split(":").length != 2) continue;
+            h=new NetClient<T>(tag,codec,null).compression(compression,compressionThreshold).deadline(deadline);
+            try {
+                h.connect(addr);
+            } catch (IOException e) {
+                logger.error(addr + " - " + e.toString());
+                continue;
+            }
+            if (h.protocol!=null) return hedge=h;
+            h.disconnect();
+        }
+        return null;
+    }
+
+    public CompletableFuture<T> loadAsync(T o) {
+        return typed(sendAsync(NetPoint.COMMANDS.LOAD,o));
+    }
+
+    public CompletableFuture<T> saveAsync(T o) {
+        return typed(sendAsync(NetPoint.COMMANDS.SAVE,o));
+    }
+
+    public CompletableFuture<T> deleteAsync(T o) {
+        return typed(sendAsync(NetPoint.COMMANDS.DELETE,o));
+    }
+
+    // the reply to a request is an object of its type
+    @SuppressWarnings("unchecked")
+    private static <R> CompletableFuture<R> typed(CompletableFuture<Object> future) {
+        return (CompletableFuture<R>) (CompletableFuture<?>) future;
+    }
+
+    /**
+     * Sends a request without waiting for the reply. Any number of requests may be in flight
+     * on the connection at once and from many threads; replies are matched by request id,
+     * so the server may answer them in any order. Text-only servers are called synchronously,
+     * and their failures fail the future just the same.
+     * With a {@link #deadline} the future fails with a TimeoutException once it passes.
+     */
+    public CompletableFuture<Object> sendAsync(NetPoint.COMMANDS cmd,Object o) {
+        Connection c=connection;
+        if (wasError || socket==null) return CompletableFuture.failedFuture(new IOException("not connected"));
+        if (c==null) {
+            try {
+                return CompletableFuture.completedFuture(call(cmd,o));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        if (c.broken) return CompletableFuture.failedFuture(new EOFException("connection closed"));
+        Protocol p=c.protocol;
+        int id=nextId.incrementAndGet();
+        String endpoint=currentServer;
+        AtomicInteger outstanding=Balancer.outstanding(endpoint);
+        outstanding.incrementAndGet();
+        long start=System.nanoTime();
+        Metrics.Timer timer=metrics.command(cmd);
+        Call future=new Call((call,e) -> {
+            c.pending.remove(id);
+            if (e instanceof TimeoutException) metrics.deadlineMissed();
+            outstanding.decrementAndGet();
+            long nanos=System.nanoTime()-start;
+            timer.record(nanos,e!=null);
+            tracer.trace(endpoint,cmd,o.getClass().getName(),call.sent,call.received,nanos,e==null ? null : e.toString());
+        });
+        c.pending.put(id,future);
+        if (deadline>0) future.orTimeout(deadline,TimeUnit.MILLISECONDS);
+        if (!startReader(c)) {
+            future.completeExceptionally(new EOFException("connection closed"));
+            return future;
+        }
+        try {
+            // the server drops the request once nobody waits for it, if it knows how
+            int budget=deadline>0 && p.version>=Frame.DEADLINE_VERSION ? (int) Math.min(deadline,Integer.MAX_VALUE) : 0;
+            ByteBuffer frame=encode(p,o,budget);
+            future.sent=frame.remaining()-Frame.HEADER_SIZE-(budget>0 ? 4 : 0);
+            p.send(Frame.op(cmd), (byte) (flags(o) | (budget>0 ? Frame.DEADLINE : 0)), id, type(o), frame);
+        } catch (IOException e) {
+            c.pending.remove(id);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Sends a LOAD whose result the server may stream: an Iterator, Stream or Flow.Publisher returned
+     * by its consumer arrives item by item while it is produced. Any other result, and every result
+     * of a server that predates streaming, arrives whole and yields the elements of a collection or
+     * else the object itself.
+     */
+    public <R> ReplyStream<R> loadStream(T o) {
+        NetPoint.COMMANDS cmd=NetPoint.COMMANDS.LOAD;
+        Connection c=connection;
+        if (wasError || socket==null || (c!=null && c.broken)) {
+            ReplyStream<R> s=new ReplyStream<>(null,0,e -> {});
+            s.fail(new IOException("not connected"));
+            return s;
+        }
+        if (c==null) {
+            ReplyStream<R> s=new ReplyStream<>(null,0,e -> {});
+            try {
+                s.reply(call(cmd,o));
+            } catch (IOException e) {
+                s.fail(e);
+            }
+            return s;
+        }
+        Protocol p=c.protocol;
+        int id=nextId.incrementAndGet();
+        String endpoint=currentServer;
+        AtomicInteger outstanding=Balancer.outstanding(endpoint);
+        outstanding.incrementAndGet();
+        long start=System.nanoTime();
+        ReplyStream<R> s=new ReplyStream<>(p,id,e -> {
+            c.streams.remove(id);
+            outstanding.decrementAndGet();
+            long nanos=System.nanoTime()-start;
+            metrics.command(cmd).record(nanos,e!=null);
+            tracer.trace(endpoint,cmd,o.getClass().getName(),-1,-1,nanos,e==null ? null : e.toString());
+        });
+        c.streams.put(id,s);
+        if (!startReader(c)) {
+            s.fail(new EOFException("connection closed"));
+            return s;
+        }
+        try {
+            p.send(Frame.op(cmd), Frame.STREAM, id, o.getClass(), encode(p,o,0));
+        } catch (IOException e) {
+            s.fail(e);
+        }
+        return s;
+    }
+
+    /**
+     * {@link #loadStream} for reactive consumers: every subscription sends the LOAD anew and
+     * is served on a thread of its own, granting the server credit as the subscriber requests.
+     */
+    public <R> Flow.Publisher<R> loadPublisher(T o) {
+        return ReplyStream.publisher("client-stream-"+tag, () -> loadStream(o));
+    }
+
+    /**
+     * Has a reader serve the connection from now on, once a synchronous call reading it is done;
+     * false if the connection is broken.
+     */
+    private boolean startReader(Connection c) {
+        synchronized (c) {
+            while (c.exchanging && !c.broken) {
+                try {
+                    c.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (c.broken) return false;
+            if (c.reader==null) c.reader=Threads.start("client-reader-"+tag, () -> readReplies(c));
+            return true;
+        }
+    }
+
+    private void readReplies(Connection c) {
+        Protocol p=c.protocol;
+        IOException cause=new EOFException("connection closed");
+        try {
+            Frame f;
+            while ((f = p.read(c.channel)) != null) {
+                if (f.op == Frame.TYPE) {
+                    p.accept(f);
+                    continue;
+                }
+                ReplyStream<?> s=c.streams.get(f.id);
+                if (s!=null) {
+                    stream(p, s, f);
+                    continue;
+                }
+                Call future=c.pending.remove(f.id);
+                if (future==null) continue;
+                future.received=f.payload.remaining();
+                try {
+                    future.complete(reply(p, f));
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        } catch (IOException e) {
+            cause=e;
+        }
+        // requests sent from now on fail right away instead of waiting for a reader
+        synchronized (c) {
+            c.broken=true;
+            c.reader=null;
+            c.notifyAll();
+        }
+        for (Integer id:c.pending.keySet()) {
+            Call future=c.pending.remove(id);
+            if (future!=null) future.completeExceptionally(cause);
+        }
+        for (ReplyStream<?> s:c.streams.values()) s.fail(cause);
+    }
+
+    private void stream(Protocol p, ReplyStream<?> s, Frame f) {
+        try {
+            if (f.op == Frame.CHUNK)
+                s.item(reply(p, f));
+            else if (f.op == Frame.END)
+                s.end();
+            else
+                s.reply(reply(p, f));
+        } catch (ServerException e) {
+            s.fail(e);
+        } catch (IOException e) {
+            s.fail(e);
+            try {
+                p.cancel(f.id);
+            } catch (IOException x) {
+            }
+        }
+    }
+
+    private ByteBuffer encode(Protocol p, Object o, int budget) throws IOException {
+        long start=System.nanoTime();
+        ByteBuffer frame=o instanceof Batch.Items ? p.encodeBatch(((Batch.Items) o).list,budget) : p.encode(o,budget);
+        metrics.encode().record(System.nanoTime()-start,false);
+        return frame;
+    }
+
+    // a batch goes with the BATCH bit, and the types of its items announced by themselves
+    private static byte flags(Object o) {
+        return o instanceof Batch.Items ? Frame.BATCH : 0;
+    }
+
+    private static Class<?> type(Object o) {
+        return o instanceof Batch.Items ? null : o.getClass();
+    }
+
+    private Object reply(Protocol p, Frame f) throws IOException {
+        if (f.op == Frame.ERROR)
+            throw new ServerException(StandardCharsets.UTF_8.decode(f.payload).toString());
+        long start=System.nanoTime();
+        if ((f.flags & Frame.BATCH) != 0) {
+            Batch<?> batch=Batch.of(p.decodeBatch(p.payload(f)));
+            metrics.decode().record(System.nanoTime()-start,false);
+            return batch;
+        }
+        if (f.type == 0) return null;
+        Object reply = p.codec.decode(p.payload(f), p.type(f.type));
+        metrics.decode().record(System.nanoTime()-start,false);
+        return reply;
+    }
+
+    private Object sendText(NetPoint.COMMANDS cmd,Object o) throws IOException {
+        byte[] data = JsonCodec.JSON.encode(o);
+        ByteArrayOutputStream bo = new ByteArrayOutputStream(data.length + 64);
+        bo.write((cmd.name()+",").getBytes());
+        bo.write((o.getClass().getName()+"\n").getBytes());
+        bo.write(data);
+        bo.write('\n');
+        socket.socket().setSoTimeout((int) Math.min(deadline, Integer.MAX_VALUE));
+        output.write(bo.toByteArray());
+        sent=data.length;
+        String clsname=input.readLine();
+        String json=input.readLine();
+        if (clsname==null  || json==null)
+            throw new EOFException("send - "+clsname+","+json);
+        received=json.length();
+        try {
+            return JsonCodec.JSON.reader(Protocol.classFor(clsname)).readValue(json);
+        }catch(ClassNotFoundException e) {
+        }
+        return null;
+    }
+
+    /**
+     * A binary connection with its requests in flight. Its replies are read either by one
+     * synchronous call at a time or, from the first asynchronous request on, by a reader thread
+     * for good; a reader that outlives the connection only fails the requests of its own.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final Protocol protocol;
+        final Map<Integer,Call> pending=new ConcurrentHashMap<>();
+        final Map<Integer,ReplyStream<?>> streams=new ConcurrentHashMap<>();
+        Thread reader;
+        boolean exchanging;
+        volatile boolean broken;
+
+        Connection(SocketChannel channel, Protocol protocol) {
+            this.channel=channel;
+            this.protocol=protocol;
+        }
+
+        /**
+         * Lets the calling thread read the reply of a synchronous call, unless a reader or another call does.
+         */
+        synchronized boolean claim() {
+            if (reader!=null || exchanging) return false;
+            exchanging=true;
+            return true;
+        }
+
+        synchronized void release() {
+            if (!exchanging) return;
+            exchanging=false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A request in flight, with the payload sizes it is traced with. It is counted before it
+     * completes, so whoever waits for it finds it in the metrics.
+     */
+    private static class Call extends CompletableFuture<Object> {
+        private final BiConsumer<Call,Throwable> done;
+        private final AtomicBoolean finished=new AtomicBoolean();
+        volatile int sent=-1;
+        volatile int received=-1;
+
+        Call(BiConsumer<Call,Throwable> done) {
+            this.done=done;
+        }
+
+        public boolean complete(Object value) {
+            if (finished.compareAndSet(false,true)) done.accept(this,null);
+            return super.complete(value);
+        }
+
+        public boolean completeExceptionally(Throwable e) {
+            if (finished.compareAndSet(false,true)) done.accept(this,e);
+            return super.completeExceptionally(e);
         }
     }
 
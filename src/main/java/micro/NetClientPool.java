@@ -0,0 +1,306 @@
+package micro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Thread-safe pool of warm connections to the discovered endpoints of one tag.
+ * Each call borrows a connection, so callers get the {@link NetClient} load/save/delete API
+ * without a TCP handshake per request:
+ * <pre>
+ * UserLocation result = NetClientPool.&lt;UserLocation&gt;get(tag).load(new UserLocation("jan"));
+ * </pre>
+ */
+public class NetClientPool<T> {
+    public static final Logger logger = LoggerFactory.getLogger(NetClientPool.class);
+
+    private final static long TIMEOUT = 20*1000;
+    private final static int MAX_PER_ENDPOINT = 8;
+    private final static long IDLE_TIMEOUT = 60*1000;
+    private final static long BORROW_TIMEOUT = 5*1000;
+    private final static long FAILURE_BACKOFF = 1000;
+    private final static Map<String,NetClientPool<?>> pools = new ConcurrentHashMap<>();
+    private final static ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String tag;
+    private final long timeout;
+    private final Codec codec;
+    private final int maxPerEndpoint;
+    private final long idleTimeout;
+    private final Map<String,Endpoint> endpoints = new ConcurrentHashMap<>();
+    private volatile NetClient.BALANCING balancing = NetClient.BALANCING.POWER_OF_TWO;
+    private volatile NetPoint.COMPRESSION compression = NetPoint.COMPRESSION.NONE;
+    private volatile int compressionThreshold = NetPoint.COMPRESSION_THRESHOLD;
+    private volatile long deadline;
+    private volatile Function<? super T,?> affinity;
+    private volatile HashRing ring = new HashRing(Collections.emptySet());
+    private final ScheduledFuture<?> eviction;
+    private final Consumer<Set<String>> discovery = this::update;
+    private volatile boolean closed = false;
+
+    public static <T> NetClientPool<T> get(String tag) {
+        return get(tag, TIMEOUT);
+    }
+
+    /**
+     * Returns the shared pool of the tag. Its endpoints follow the {@link DiscoveryRegistry}.
+     */
+    public static <T> NetClientPool<T> get(String tag, long timeout) {
+        // one pool per tag, whatever type the caller asks for
+        @SuppressWarnings("unchecked")
+        NetClientPool<T> pool = (NetClientPool<T>) pools.computeIfAbsent(tag,
+                t -> new NetClientPool<>(t, timeout, JsonCodec.JSON, MAX_PER_ENDPOINT, IDLE_TIMEOUT));
+        return pool;
+    }
+
+    public NetClientPool(String tag, long timeout, Codec codec, int maxPerEndpoint, long idleTimeout) {
+        this.tag = tag;
+        this.timeout = timeout > 0 ? timeout : TIMEOUT;
+        this.codec = codec;
+        this.maxPerEndpoint = maxPerEndpoint;
+        this.idleTimeout = idleTimeout;
+        DiscoveryRegistry.get().subscribe(tag, discovery);
+        update(DiscoveryRegistry.get().endpoints(tag));
+        long period = Math.max(idleTimeout / 2, 100);
+        eviction = evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public NetClientPool<T> balancing(NetClient.BALANCING balancing) {
+        this.balancing = balancing;
+        return this;
+    }
+
+    /**
+     * See {@link NetClient#compression}; applies to connections opened from now on.
+     */
+    public NetClientPool<T> compression(NetPoint.COMPRESSION compression, int threshold) {
+        this.compression = compression;
+        this.compressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * See {@link NetClient#deadline}; a connection that missed it is discarded like a broken one.
+     */
+    public NetClientPool<T> deadline(long millis) {
+        this.deadline = millis;
+        return this;
+    }
+
+    /**
+     * Routes every request by the key taken from its object over a consistent-hash ring of the
+     * endpoints, so the requests for one entity meet the caches of one instance. An instance with
+     * more than its share of the requests in flight passes keys on to the next one on the ring.
+     */
+    public NetClientPool<T> affinity(Function<? super T,?> key) {
+        this.affinity = key;
+        return this;
+    }
+
+    public T load(T o) {
+        return cast(send(NetPoint.COMMANDS.LOAD, o));
+    }
+
+    public T save(T o) {
+        return cast(send(NetPoint.COMMANDS.SAVE, o));
+    }
+
+    public T delete(T o) {
+        return cast(send(NetPoint.COMMANDS.DELETE, o));
+    }
+
+    // requests and replies of a pool are objects of its type
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object o) {
+        return (T) o;
+    }
+
+    /**
+     * Sends on a pooled connection. A LOAD that fails on a reused connection is repeated once
+     * on a fresh one, since the service may have dropped the connection while it was idle.
+     */
+    public Object send(NetPoint.COMMANDS cmd, Object o) {
+        Function<? super T,?> key = affinity;
+        Object k = key == null ? null : key.apply(NetClientPool.<T>cast(o));
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Lease lease = borrow(k);
+            if (lease == null) {
+                logger.error("pool " + tag + " - there is no server");
+                return null;
+            }
+            try {
+                Object reply = lease.client.call(cmd, o);
+                release(lease);
+                return reply;
+            } catch (ServerException e) {
+                release(lease);
+                logger.error("pool " + tag + " - " + e.toString());
+                return null;
+            } catch (IOException e) {
+                discard(lease);
+                logger.error("pool " + tag + " " + lease.endpoint.address + " - " + e.toString());
+                if (!lease.reused || cmd != NetPoint.COMMANDS.LOAD) return null;
+            }
+        }
+        return null;
+    }
+
+    public int idle() {
+        int n = 0;
+        for (Endpoint e : endpoints.values()) n += e.idle.size();
+        return n;
+    }
+
+    public void close() {
+        closed = true;
+        eviction.cancel(false);
+        DiscoveryRegistry.get().unsubscribe(tag, discovery);
+        pools.remove(tag, this);
+        for (Endpoint e : endpoints.values()) {
+            Lease l;
+            while ((l = e.idle.pollFirst()) != null) discard(l);
+        }
+    }
+
+    /**
+     * Follows the registry: new endpoints are added, the idle connections of gone ones are closed.
+     */
+    private void update(Set<String> addresses) {
+        for (String address : addresses)
+            endpoints.computeIfAbsent(address, Endpoint::new);
+        for (Endpoint e : endpoints.values()) {
+            if (addresses.contains(e.address)) continue;
+            endpoints.remove(e.address, e);
+            Lease l;
+            while ((l = e.idle.pollFirst()) != null) discard(l);
+        }
+        if (!ring.endpoints().equals(endpoints.keySet())) ring = new HashRing(endpoints.keySet());
+    }
+
+    /**
+     * A connection to the endpoint the balancing picks, or for a key to the one the ring assigns it.
+     */
+    Lease borrow(Object key) {
+        if (endpoints.isEmpty()) update(DiscoveryRegistry.get().await(tag, timeout));
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+        while (!closed) {
+            List<Endpoint> list = new ArrayList<>();
+            HashRing r = ring;
+            List<String> order = key != null && !r.endpoints().isEmpty() ? r.order(key)
+                    : Balancer.order(balancing, endpoints.keySet(), null);
+            for (String address : order) {
+                Endpoint e = endpoints.get(address);
+                if (e != null) list.add(e);
+            }
+            if (list.isEmpty()) return null;
+            for (Endpoint e : list) {
+                Lease l = e.borrow();
+                if (l != null) return l;
+            }
+            if (System.currentTimeMillis() > deadline) return null;
+            try {
+                Lease l = list.get(0).idle.pollFirst(50, TimeUnit.MILLISECONDS);
+                if (l != null) {
+                    if (l.client.isAlive()) {
+                        l.reused = true;
+                        return l;
+                    }
+                    discard(l);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    void release(Lease l) {
+        l.lastUsed = System.currentTimeMillis();
+        if (closed || !l.client.isAlive()) {
+            discard(l);
+            return;
+        }
+        l.endpoint.idle.offerFirst(l);
+    }
+
+    private void discard(Lease l) {
+        l.client.disconnect();
+        l.endpoint.permits.release();
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        for (Endpoint e : endpoints.values()) {
+            Iterator<Lease> it = e.idle.descendingIterator();
+            while (it.hasNext()) {
+                Lease l = it.next();
+                if (now - l.lastUsed < idleTimeout) break;
+                if (e.idle.removeLastOccurrence(l)) discard(l);
+            }
+        }
+    }
+
+    class Endpoint {
+        final String address;
+        final Semaphore permits = new Semaphore(maxPerEndpoint);
+        final LinkedBlockingDeque<Lease> idle = new LinkedBlockingDeque<>();
+        volatile long failedUntil = 0;
+
+        Endpoint(String address) {
+            this.address = address;
+        }
+
+        /**
+         * The most recently used idle connection, or a new one while under the bound.
+         */
+        Lease borrow() {
+            Lease l;
+            while ((l = idle.pollFirst()) != null) {
+                if (System.currentTimeMillis() - l.lastUsed < idleTimeout && l.client.isAlive()) {
+                    l.reused = true;
+                    return l;
+                }
+                discard(l);
+            }
+            if (System.currentTimeMillis() < failedUntil || !permits.tryAcquire()) return null;
+            NetClient<T> client = new NetClient<T>(tag, codec, null).compression(compression, compressionThreshold).deadline(deadline);
+            try {
+                client.connect(address);
+                return new Lease(this, client);
+            } catch (IOException e) {
+                permits.release();
+                failedUntil = System.currentTimeMillis() + FAILURE_BACKOFF;
+                logger.error("pool " + tag + " " + address + " - " + e.toString());
+                return null;
+            }
+        }
+    }
+
+    class Lease {
+        final Endpoint endpoint;
+        final NetClient<T> client;
+        long lastUsed = System.currentTimeMillis();
+        boolean reused = false;
+
+        Lease(Endpoint endpoint, NetClient<T> client) {
+            this.endpoint = endpoint;
+            this.client = client;
+        }
+    }
+}
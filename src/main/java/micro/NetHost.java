@@ -0,0 +1,638 @@
+package micro;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static micro.NetPoint.logger;
+
+/**
+ * Listeners, workers and the multicast announcement shared by the services of one JVM. Each service
+ * is a {@link NetPoint} registered under its tag. Binary clients name the tag in their hello; text
+ * clients and clients that predate tags are served by the service registered first.
+ * One announcement lists all tags.
+ */
+public class NetHost {
+    final static String TAGS_FIELD = "tags=";
+    final static String HOST_FIELD = "host=";
+    final static String UNIX_FIELD = "unix=";
+    private final static int MAX_REJECTIONS=64;
+    private final static int REJECT_TIMEOUT=100;
+    private final static int PROBE_TIMEOUT=250;
+
+    private final int maxClients;
+    private final NetPoint.Options options;
+    // listening sockets per address, more than one only with SO_REUSEPORT
+    final int acceptors;
+    private final Map<String,NetPoint> points = new ConcurrentHashMap<>();
+    private final List<String> order = new CopyOnWriteArrayList<>();
+    final AtomicInteger currClients=new AtomicInteger();
+    final AtomicInteger queued=new AtomicInteger();
+    final Histogram latency=new Histogram();
+    private ExecutorService executor;
+    private ExecutorService workersExecutor;
+    private Scheduler rejector;
+    private List<InetAddress> inetAddresses;
+    private List<Integer> inetPorts;
+    private Path unixPath;
+    private List<Server> servers = new ArrayList<>();
+    private SelectorServer selectorServer;
+    private final DelayQueue<Announcement> announcements=new DelayQueue<>();
+
+    private NetHost(int maxClients, NetPoint.Options options) {
+        this.maxClients=maxClients;
+        this.options=options;
+        this.acceptors=options.acceptors>1 && !reusePort() ? 1 : options.acceptors;
+        if (acceptors<options.acceptors) logger.warn("SO_REUSEPORT is not available, listening on one socket per address");
+        inetAddresses=loadAllInterfaces();
+        inetPorts=findAvailablePorts();
+        if (options.unixSocket && Unix.SUPPORTED && !inetPorts.isEmpty())
+            unixPath=Paths.get(System.getProperty("java.io.tmpdir"), "microrest-" + inetPorts.get(0) + ".sock");
+    }
+
+    /**
+     * Starts listening with the engine and worker settings of the options; services come with {@link #register}.
+     */
+    public static NetHost start(int maxClients, NetPoint.Options options) {
+        NetHost host=new NetHost(maxClients,options);
+        if (options.engine==NetPoint.ENGINES.NIO)
+            host.startSelectors();
+        else
+            host.startServers();
+        return host;
+    }
+
+    public NetPoint register(String tag, BiFunction<NetPoint.COMMANDS,Object,Object> consumer) {
+        return register(tag,consumer,new NetPoint.Options());
+    }
+
+    /**
+     * Adds a service, or returns the one already registered under the tag. Only the codec, cache,
+     * tracer and compression of the options apply, the engine settings are the host's.
+     */
+    public synchronized NetPoint register(String tag, BiFunction<NetPoint.COMMANDS,Object,Object> consumer, NetPoint.Options options) {
+        NetPoint point=points.get(tag);
+        if (point!=null) return point;
+        point=new NetPoint(this,tag,consumer,options);
+        gauges(point.metrics());
+        point.metrics().register();
+        points.put(tag,point);
+        order.add(tag);
+        // a new service is announced right away
+        announcements.add(new Announcement(null, 0));
+        logger.info("service " + tag + " registered");
+        return point;
+    }
+
+    synchronized void unregister(NetPoint point) {
+        if (points.remove(point.tag(),point)) {
+            order.remove(point.tag());
+            point.metrics().unregister();
+            leave(point.tag());
+            logger.info("service " + point.tag() + " unregistered");
+        }
+    }
+
+    public Set<String> tags() {
+        return new LinkedHashSet<>(order);
+    }
+
+    /**
+     * The service of the tag, the first one registered for a null tag.
+     */
+    NetPoint point(String tag) {
+        if (tag!=null) return points.get(tag);
+        for (String t:order) {
+            NetPoint p=points.get(t);
+            if (p!=null) return p;
+        }
+        return null;
+    }
+
+    /**
+     * Picks the service a connection talks to from its hello, and sets the protocol up for it.
+     * Answers an error and returns null for a tag that is not hosted here.
+     */
+    NetPoint bind(Protocol protocol, Frame hello) throws IOException {
+        String tag=hello.op==Frame.HELLO ? Protocol.tag(hello) : null;
+        NetPoint point=point(tag);
+        if (point==null) {
+            protocol.error(hello.id, "unknown service " + tag);
+            return null;
+        }
+        NetPoint.Options o=point.options();
+        protocol.configure(o.codec, o.compression, o.compressionThreshold, point.metrics());
+        protocol.handlers(point.handlers());
+        return point;
+    }
+
+    public void stop() {
+        for (NetPoint p:new ArrayList<>(points.values())) unregister(p);
+        stopServers();
+        stopWorkers();
+    }
+
+    /**
+     * Current load with the service time percentile of the requests since the last look at it.
+     */
+    public Load load() {
+        return new Load(currClients.get(),maxClients,queued.get(),latency.percentile(0.99));
+    }
+
+    private void gauges(Metrics metrics) {
+        metrics.connections=currClients::get;
+        metrics.queued=queued::get;
+        if (workersExecutor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool=(ThreadPoolExecutor) workersExecutor;
+            metrics.workers=pool::getPoolSize;
+            metrics.busyWorkers=pool::getActiveCount;
+        }
+    }
+
+    /**
+     * Connections turned away before they named a service count for the first one.
+     */
+    void rejected() {
+        NetPoint p=point(null);
+        if (p!=null) p.metrics().rejected();
+    }
+
+    private List<InetAddress> loadAllInterfaces() {
+        ArrayList<InetAddress> result = new ArrayList<>();
+        try {
+            Enumeration<NetworkInterface> list = NetworkInterface.getNetworkInterfaces();
+            while (list.hasMoreElements()) {
+                NetworkInterface i = list.nextElement();
+                if (!i.isUp()) continue;
+                for (InterfaceAddress a : i.getInterfaceAddresses()) {
+                    if (a.getAddress() instanceof Inet6Address) continue;
+                    result.add(a.getAddress());
+                    logger.debug("interface: {}", a.getAddress().getHostAddress());
+                }
+            }
+        } catch (IOException  e){ }
+        return result;
+    }
+
+
+    private List<Integer>  findAvailablePorts() {
+        ArrayList<Integer> ports = new ArrayList<>();
+        for(InetAddress a:inetAddresses) {
+            try (ServerSocket socket = new ServerSocket(0,0,a)) {
+                ports.add(socket.getLocalPort());
+                continue;
+            } catch (IOException e) {
+            }
+            ports.add(0);
+        }
+        return ports;
+    }
+
+    private static boolean reusePort() {
+        try (ServerSocketChannel ch=ServerSocketChannel.open()) {
+            return ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a TCP listening socket with the accept backlog of the options, sharing its port with
+     * the other acceptors of the address.
+     */
+    ServerSocketChannel listen(InetSocketAddress address) throws IOException {
+        ServerSocketChannel ch=ServerSocketChannel.open();
+        try {
+            ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (acceptors>1) ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            ch.bind(address, options.acceptBacklog);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    private void startServers() {
+        for(int i=0;i<inetAddresses.size();i++)
+            for (int k=0;k<acceptors;k++)
+                servers.add(new Server(inetAddresses.get(i),inetPorts.get(0)));
+        if (unixPath!=null) servers.add(new Server(unixPath));
+        if (options.engine==NetPoint.ENGINES.VIRTUAL) {
+            workersExecutor = Threads.perTask("worker-");
+            if (workersExecutor==null) logger.warn("virtual threads are not available, using platform workers");
+        }
+        int listeners=inetAddresses.size()+(unixPath!=null ? 1 : 0);
+        if (workersExecutor==null) workersExecutor = scheduler(maxClients*listeners, maxClients);
+        rejector = new Scheduler("rejector", 1, 1, options.keepAlive, MAX_REJECTIONS);
+        executor = Executors.newFixedThreadPool(servers.size()+2);
+        for(Server s:servers)
+            executor.submit(s);
+        executor.submit(new Broadcaster());
+        executor.submit(new Responder());
+    }
+
+    private void startSelectors() {
+        List<InetSocketAddress> addresses=new ArrayList<>();
+        for(InetAddress a:inetAddresses)
+            addresses.add(new InetSocketAddress(a,inetPorts.get(0)));
+        workersExecutor = scheduler(maxClients, maxClients*SelectorServer.MAX_PENDING);
+        selectorServer=new SelectorServer(this,addresses,unixPath,options.selectors,workersExecutor,acceptors);
+        executor = Executors.newFixedThreadPool(options.selectors+3);
+        selectorServer.start(executor);
+        executor.submit(new Broadcaster());
+        executor.submit(new Responder());
+    }
+
+    private Scheduler scheduler(int max, int backlog) {
+        if (options.maxWorkers>0) max=options.maxWorkers;
+        if (options.backlog>=0) backlog=options.backlog;
+        return new Scheduler("worker", Math.min(options.minWorkers, max), max, options.keepAlive, backlog);
+    }
+
+    private void stopWorkers() {
+        if (rejector!=null) rejector.shutdownNow();
+        workersExecutor.shutdown();
+        try {
+            if (!workersExecutor.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
+                workersExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workersExecutor.shutdownNow();
+        }
+    }
+
+    private void stopServers() {
+        executor.shutdown();
+        try {
+            for(Server s:servers) s.disconnect();
+            if (selectorServer!=null) selectorServer.disconnect();
+            if (!executor.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+        if (unixPath!=null) {
+            try {
+                Files.deleteIfExists(unixPath);
+            } catch (IOException e) {
+                logger.error(unixPath + "-" + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Serves one connection of the blocking engine on a worker of the scheduler.
+     */
+    class ServerWorker implements  Runnable {
+        SocketChannel socket;
+        BufferedReader input;
+        OutputStream output;
+
+        public ServerWorker(SocketChannel socket) {
+            this.socket=socket;
+        }
+
+        public void disconnect() {
+            try {
+                if (input!=null) input.close();
+                if (output!=null) output.close();
+                socket.close();
+                input=null;
+                output=null;
+                logger.debug("server disconnected");
+            }catch (IOException e) {
+                logger.error(e.toString());
+            }
+        }
+
+        public void run() {
+            String peer = peer();
+            try {
+                logger.debug("worker {} ({}) started", peer, currClients.incrementAndGet());
+                ByteBuffer first = ByteBuffer.allocate(1);
+                if (socket.read(first) > 0) {
+                    first.flip();
+                    if (first.get(0) == Frame.MAGIC)
+                        serveBinary(peer, first);
+                    else
+                        serveText(peer, first);
+                }
+                logger.debug("worker {} stopped", peer);
+            }catch(IOException e){
+                logger.error("worker " + peer + "-" + e.toString());
+            } finally{
+                currClients.decrementAndGet();
+                disconnect();
+            }
+        }
+
+        String peer() {
+            try {
+                SocketAddress local = socket.getLocalAddress();
+                if (Unix.isUnix(local)) return "unix:" + local;
+            } catch (IOException e) {
+            }
+            Socket s = socket.socket();
+            return s.getInetAddress().getHostAddress() + ":" + s.getLocalPort();
+        }
+
+        void serveText(String peer, ByteBuffer first) throws IOException {
+            NetPoint point = point(null);
+            if (point == null) return;
+            input = new BufferedReader(new InputStreamReader(new SequenceInputStream(
+                    new ByteArrayInputStream(first.array(), 0, first.limit()), Channels.newInputStream(socket))));
+            output = Channels.newOutputStream(socket);
+            while (!workersExecutor.isShutdown()) {
+                String line = input.readLine();
+                if (line==null) break;
+                String json = input.readLine();
+                if (json == null) break;
+                queued.incrementAndGet();
+                try {
+                    byte[] reply = point.process(peer, line, json);
+                    if (reply != null) output.write(reply);
+                } finally {
+                    queued.decrementAndGet();
+                }
+            }
+        }
+
+        void serveBinary(String peer, ByteBuffer first) throws IOException {
+            Protocol protocol = new Protocol();
+            protocol.prime(first);
+            protocol.sink(buffers -> Protocol.write(socket, buffers));
+            Frame hello = protocol.read(socket);
+            if (hello == null) return;
+            NetPoint point = bind(protocol, hello);
+            if (point == null) return;
+            point.process(peer, protocol, hello);
+            // a streaming reply waits for credit on this thread, so it reads on meanwhile
+            // and keeps the requests that come in for later
+            ArrayDeque<Frame> deferred = new ArrayDeque<>();
+            protocol.source(() -> {
+                Frame f = protocol.read(socket);
+                if (f == null) return false;
+                if (f.isRequest())
+                    deferred.add(f.copy());
+                else
+                    point.process(peer, protocol, f);
+                return true;
+            });
+            while (!workersExecutor.isShutdown()) {
+                Frame f = deferred.isEmpty() ? protocol.read(socket) : deferred.poll();
+                if (f == null) break;
+                if (!f.isRequest()) {
+                    point.process(peer, protocol, f);
+                    continue;
+                }
+                queued.incrementAndGet();
+                try {
+                    point.process(peer, protocol, f);
+                } finally {
+                    queued.decrementAndGet();
+                }
+            }
+        }
+
+    }
+
+
+    class Server implements Runnable {
+        volatile ServerSocketChannel socket;
+        InetAddress address;
+        Integer port;
+        Path path;
+        String name;
+        boolean started=false;
+
+        public Server(InetAddress address, Integer port) {
+            this.address = address;
+            this.port = port;
+            this.name = address.getHostAddress()+":"+port;
+        }
+
+        Server(Path path) {
+            this.path = path;
+            this.name = "unix:"+path;
+        }
+        public boolean isStarted() {
+            return started;
+        }
+        public void disconnect()  {
+            if (socket==null) return;
+            try {
+                socket.close();
+            }catch (IOException e) {
+                logger.error(e.toString());
+            }
+        }
+        /**
+         * Tells a binary client that the server is overloaded, so it can move on to another
+         * endpoint right away. Text clients only see the connection closed.
+         */
+        void reject(SocketChannel clientSocket) {
+            if (path != null) {
+                close(clientSocket);
+                return;
+            }
+            try {
+                rejector.execute(() -> {
+                    try {
+                        clientSocket.socket().setSoTimeout(REJECT_TIMEOUT);
+                        if (clientSocket.socket().getInputStream().read() == (Frame.MAGIC & 0xff)) {
+                            byte[] msg = Scheduler.OVERLOADED.getBytes();
+                            Protocol.write(clientSocket, new ByteBuffer[]{
+                                    Frame.header(Frame.ERROR, (byte) 0, 0, 0, msg.length), ByteBuffer.wrap(msg)});
+                        }
+                    } catch (IOException e) {
+                    } finally {
+                        close(clientSocket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                close(clientSocket);
+            }
+        }
+        void close(SocketChannel clientSocket) {
+            try {
+                clientSocket.close();
+            }catch (IOException e) {
+                logger.error(e.toString());
+            }
+        }
+        public void run() {
+            while (!executor.isShutdown()) {
+                try {
+                    if (path != null) {
+                        socket = Unix.listen(path);
+                    } else {
+                        socket = listen(new InetSocketAddress(address, port));
+                    }
+                    logger.info(name+" started");
+                    started=true;
+                    while (!executor.isShutdown()) {
+                        SocketChannel clientSocket = socket.accept();
+                        if (clientSocket != null) {
+                            try {
+                                workersExecutor.execute(new ServerWorker(clientSocket));
+                            } catch (RejectedExecutionException e) {
+                                logger.error(name+" overloaded");
+                                rejected();
+                                reject(clientSocket);
+                            }
+                        }
+                    }
+                    logger.info(name+" stopped");
+                } catch (IOException e) {
+                    logger.error(name+"-"+e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * The announcement of the endpoints with the first tag in second place, as it always was,
+     * all tags in a {@value #TAGS_FIELD} field when there are more, the machine and the Unix socket
+     * in {@value #HOST_FIELD} and {@value #UNIX_FIELD} fields, and the current {@link Load} last.
+     * A goodbye starts with mnl instead of mnc and lists the tags that left.
+     */
+    private String message(String kind, List<String> tags, Load load) {
+        StringBuilder b=new StringBuilder(kind).append(',').append(tags.get(0)).append(',').append(endpoints());
+        if (tags.size()>1) b.append(',').append(TAGS_FIELD).append(String.join(";",tags));
+        if (unixPath!=null) b.append(',').append(HOST_FIELD).append(Unix.HOST).append(',').append(UNIX_FIELD).append(unixPath);
+        return b.append(',').append(load.format()).toString();
+    }
+
+    private String endpoints() {
+        StringBuilder b=new StringBuilder();
+        for(int i=0;i<inetAddresses.size();i++) {
+            if (i>0) b.append(",");
+            b.append(inetAddresses.get(i).getHostAddress()+":"+inetPorts.get(0));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Tells the clients right away that a service left, rather than have them wait for its endpoints to expire.
+     */
+    private void leave(String tag) {
+        byte[] buf=message("mnl", Collections.singletonList(tag), load()).getBytes(StandardCharsets.UTF_8);
+        try (MulticastSocket socket=new MulticastSocket()) {
+            socket.send(new DatagramPacket(buf, buf.length, InetAddress.getByName(NetPoint.MULTICAST_ADDRESS), NetPoint.MULTICAST_PORT));
+        } catch (IOException e) {
+            logger.error("multicast goodbye "+tag+"-"+e.toString());
+        }
+    }
+
+    /**
+     * An announcement to send at due time: by unicast to the client that probed, or to the
+     * group when the client is null because the services changed.
+     */
+    static final class Announcement implements Delayed {
+        final SocketAddress client;
+        final long due;
+
+        Announcement(SocketAddress client, long delayMillis) {
+            this.client=client;
+            this.due=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due-System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * Announces the services to the group when they change, when the load moved enough to matter
+     * to the clients, and every {@link NetPoint#MULTICAST_HEARTBEAT} ms otherwise; answers probes
+     * in between. Full servers keep announcing, clients weigh them by their load instead.
+     */
+    class Broadcaster implements Runnable {
+        public void run() {
+            while(!executor.isShutdown()) {
+                try (MulticastSocket socket = new MulticastSocket(NetPoint.MULTICAST_PORT)) {
+                    logger.info("multicast server "+NetPoint.MULTICAST_ADDRESS+":"+NetPoint.MULTICAST_PORT+" started");
+                    InetAddress address = InetAddress.getByName(NetPoint.MULTICAST_ADDRESS);
+                    Load announced = null;
+                    long sent = 0;
+                    long next = 0;
+                    while(!executor.isShutdown()) {
+                        Announcement a = announcements.poll(Math.max(0, next-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                        List<String> tags = new ArrayList<>(order);
+                        if (a != null && a.client != null) {
+                            if (!tags.isEmpty()) {
+                                byte[] buf = message("mnc", tags, load()).getBytes(StandardCharsets.UTF_8);
+                                socket.send(new DatagramPacket(buf, buf.length, a.client));
+                            }
+                            continue;
+                        }
+                        long now = System.currentTimeMillis();
+                        if (a == null && now < next) continue;
+                        next = now + NetPoint.MULTICAST_INTERVAL;
+                        Load load = load();
+                        latency.reset();
+                        if (tags.isEmpty()) continue;
+                        if (a == null && announced != null && !load.moved(announced) && now - sent < NetPoint.MULTICAST_HEARTBEAT)
+                            continue;
+                        byte[] buf = message("mnc", tags, load).getBytes(StandardCharsets.UTF_8);
+                        socket.send(new DatagramPacket(buf, buf.length, address, NetPoint.MULTICAST_PORT));
+                        logger.debug("multicast server {}:{} a packet sent: {}", NetPoint.MULTICAST_ADDRESS, NetPoint.MULTICAST_PORT, load);
+                        announced = load;
+                        sent = now;
+                    }
+                    logger.info("multicast server "+NetPoint.MULTICAST_ADDRESS+":"+NetPoint.MULTICAST_PORT+" stopped");
+                }catch(IOException | InterruptedException e) {
+                    logger.error("multicast server "+NetPoint.MULTICAST_ADDRESS+":"+NetPoint.MULTICAST_PORT+"-"+e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Listens for the probes of clients and has the {@link Broadcaster} answer those for a hosted
+     * tag after a random delay of up to {@link NetPoint#PROBE_JITTER} ms, which spreads the answers
+     * of many hosts to one probe.
+     */
+    class Responder implements Runnable {
+        public void run() {
+            while(!executor.isShutdown()) {
+                try (MulticastSocket socket = new MulticastSocket(NetPoint.MULTICAST_PORT)) {
+                    socket.joinGroup(new InetSocketAddress(InetAddress.getByName(NetPoint.MULTICAST_ADDRESS), 0), null);
+                    socket.setSoTimeout(PROBE_TIMEOUT);
+                    byte[] buf = new byte[1024];
+                    while(!executor.isShutdown()) {
+                        DatagramPacket pckt = new DatagramPacket(buf, buf.length);
+                        try {
+                            socket.receive(pckt);
+                        } catch (SocketTimeoutException e) {
+                            continue;
+                        }
+                        String[] probe = new String(buf, 0, pckt.getLength(), StandardCharsets.UTF_8).split(",");
+                        if (probe.length != 2 || !probe[0].equals("mnp") || !points.containsKey(probe[1])) continue;
+                        long jitter = ThreadLocalRandom.current().nextLong(NetPoint.PROBE_JITTER + 1);
+                        announcements.add(new Announcement(pckt.getSocketAddress(), jitter));
+                    }
+                }catch(IOException e) {
+                    logger.error("multicast probes "+NetPoint.MULTICAST_ADDRESS+":"+NetPoint.MULTICAST_PORT+"-"+e.toString());
+                }
+            }
+        }
+    }
+}
@@ -1,16 +1,22 @@
 package micro;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.net.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 
 public class NetPoint {
@@ -20,299 +26,633 @@ public class NetPoint {
         LOAD,SAVE,DELETE
     }
 
+    /**
+     * BLOCKING serves each connection on a pooled worker thread, VIRTUAL on a virtual thread of its
+     * own (JDK 21, otherwise it falls back to BLOCKING), NIO multiplexes connections on a few selectors.
+     */
+    public enum ENGINES {
+        BLOCKING,NIO,VIRTUAL
+    }
+
+    /**
+     * Payload compression of binary connections: DEFLATE packs tighter, LZ4 costs far less CPU.
+     */
+    public enum COMPRESSION {
+        NONE,DEFLATE,LZ4
+    }
+
+    /**
+     * A consumer that takes the items of a batch request in one call, to look them all up in a
+     * single query say. It returns one result per item in their order; a Throwable among them
+     * fails that item alone. Single requests still go to apply.
+     */
+    public interface BatchConsumer extends BiFunction<COMMANDS,Object,Object> {
+        List<?> applyAll(COMMANDS cmd, List<Object> items);
+    }
+
+    public static class Options {
+        ENGINES engine=ENGINES.BLOCKING;
+        int selectors=Runtime.getRuntime().availableProcessors();
+        Codec codec=JsonCodec.JSON;
+        ResponseCache cache;
+        Tracer tracer=new Tracer();
+        COMPRESSION compression=COMPRESSION.LZ4;
+        int compressionThreshold=COMPRESSION_THRESHOLD;
+        int minWorkers=Runtime.getRuntime().availableProcessors();
+        int maxWorkers;
+        long keepAlive=60*1000;
+        int backlog=-1;
+        boolean unixSocket=true;
+        boolean parallelBatches;
+        int acceptors=1;
+        int acceptBacklog;
+
+        public Options engine(ENGINES engine) {
+            this.engine=engine;
+            return this;
+        }
+
+        public Options selectors(int selectors) {
+            this.selectors=Math.max(1,selectors);
+            return this;
+        }
+
+        public Options codec(Codec codec) {
+            this.codec=codec;
+            return this;
+        }
+
+        public Options cache(ResponseCache cache) {
+            this.cache=cache;
+            return this;
+        }
+
+        public Options tracer(Tracer tracer) {
+            this.tracer=tracer;
+            return this;
+        }
+
+        /**
+         * The server compresses replies of at least threshold bytes with whatever compression
+         * a client proposes; NONE turns compression down for all of them.
+         */
+        public Options compression(COMPRESSION compression, int threshold) {
+            this.compression=compression;
+            this.compressionThreshold=threshold;
+            return this;
+        }
+
+        /**
+         * Bounds of the worker pool. The maximum defaults to maxClients per listening address
+         * for the blocking engine, where a worker serves one connection, and to maxClients for NIO.
+         */
+        public Options workers(int min, int max) {
+            this.minWorkers=Math.max(1,min);
+            this.maxWorkers=max;
+            return this;
+        }
+
+        /**
+         * How long a worker above the minimum stays idle before it retires.
+         */
+        public Options keepAlive(long millis) {
+            this.keepAlive=millis;
+            return this;
+        }
+
+        /**
+         * How many connections (blocking) or requests (NIO) may wait for a busy pool before the
+         * server answers "overloaded". Defaults to maxClients connections, or as many requests
+         * as maxClients fully pipelined connections can have in flight.
+         */
+        public Options backlog(int backlog) {
+            this.backlog=backlog;
+            return this;
+        }
+
+        /**
+         * Whether the host also listens on a Unix domain socket in the temp directory, which
+         * clients on the same machine use instead of TCP. On by default where the JDK has them (16+).
+         */
+        public Options unixSocket(boolean unixSocket) {
+            this.unixSocket=unixSocket;
+            return this;
+        }
+
+        /**
+         * Whether the items of a batch request go to the consumer in parallel, on the common
+         * fork-join pool, rather than one after the other on the worker. Off by default, as it
+         * needs a consumer that is safe to call concurrently; a {@link BatchConsumer} is not affected.
+         */
+        public Options parallelBatches(boolean parallelBatches) {
+            this.parallelBatches=parallelBatches;
+            return this;
+        }
+
+        /**
+         * How many sockets listen on each address, all bound to the same port with SO_REUSEPORT so
+         * that the kernel spreads new connections over them. The blocking engine gives each its own
+         * accept thread, NIO deals them out to the event loops, which then accept for themselves.
+         * Where SO_REUSEPORT is missing there is one socket, as by default.
+         */
+        public Options acceptors(int acceptors) {
+            this.acceptors=Math.max(1,acceptors);
+            return this;
+        }
+
+        /**
+         * Connections the kernel holds per listening socket until they are accepted; the rest are
+         * dropped during a connect storm. 0 leaves the JDK default of 50, the system limit
+         * (somaxconn on Linux) caps larger values.
+         */
+        public Options acceptBacklog(int acceptBacklog) {
+            this.acceptBacklog=Math.max(0,acceptBacklog);
+            return this;
+        }
+    }
+
     public  final static int MULTICAST_PORT=4555;
     public final static String MULTICAST_ADDRESS="225.5.5.5";
-    private final static long MULTICAST_INTERVAL= 5 *1000;
-    private static NetPoint  net;
-    private String tag;
-    private int startedClients=0;
-    private int maxClients;
-    private volatile int currClients=0;
-    private  BiFunction<COMMANDS,Object,Object> consumer;
-    private ExecutorService executor;
-    private ExecutorService workersExecutor;
-    private List<InetAddress> inetAddresses;
-    private List<Integer> inetPorts;
-    private List<Server> servers = new ArrayList<>();
-    private BlockingDeque<ServerWorker> clients = new LinkedBlockingDeque<>();
-
-    private NetPoint(String tag, int maxClients,  BiFunction<COMMANDS,Object,Object> consumer) {
+    // how often a host looks whether its announcement changed
+    final static long MULTICAST_INTERVAL= 5 *1000;
+    // announced anyway when nothing changed for that long, within the 15 s older clients keep an endpoint
+    final static long MULTICAST_HEARTBEAT= 2*MULTICAST_INTERVAL;
+    // the most a host waits before it answers a probe, so that many hosts do not answer at once
+    final static long PROBE_JITTER=50;
+    final static int COMPRESSION_THRESHOLD=16*1024;
+    final static String EXPIRED="deadline expired";
+    // System.nanoTime() deadline of the request the thread is running the consumer for, 0 for none
+    private final static ThreadLocal<long[]> deadline=ThreadLocal.withInitial(() -> new long[1]);
+    private static NetHost shared;
+    private final NetHost host;
+    private final String tag;
+    private final Metrics metrics;
+    private final BiFunction<COMMANDS,Object,Object> consumer;
+    private final Handlers handlers;
+    private final Options options;
+
+    NetPoint(NetHost host, String tag, BiFunction<COMMANDS,Object,Object> consumer, Options options) {
+        this.host=host;
         this.tag=tag;
-        this.maxClients=maxClients;
         this.consumer=consumer;
-        inetAddresses=loadAllInterfaces();
-        inetPorts=findAvailablePorts();
-
+        this.handlers=consumer instanceof Handlers ? (Handlers) consumer : null;
+        this.options=options;
+        this.metrics=new Metrics("NetPoint",tag);
     }
 
     public static NetPoint start(String tag, int maxClients, BiFunction<COMMANDS,Object,Object> consumer ) {
-        if (net==null) {
-            net=new NetPoint(tag,maxClients,consumer);
-            net.startServers();
-        }
-        return net;
+        return start(tag,maxClients,consumer,new Options());
     }
 
-    public void stop() {
-        stopServers();
-        stopWorkers();
-        net=null;
+    /**
+     * Registers the service on the host shared by the services started this way, which the first of
+     * them starts with its maxClients and engine settings. Starting a tag that runs already returns it.
+     */
+    public static synchronized NetPoint start(String tag, int maxClients, BiFunction<COMMANDS,Object,Object> consumer, Options options) {
+        if (shared==null) shared=NetHost.start(maxClients,options);
+        return shared.register(tag,consumer,options);
     }
 
-    private List<InetAddress> loadAllInterfaces() {
-        ArrayList<InetAddress> result = new ArrayList<>();
-        try {
-            Enumeration<NetworkInterface> list = NetworkInterface.getNetworkInterfaces();
-            while (list.hasMoreElements()) {
-                NetworkInterface i = list.nextElement();
-                if (!i.isUp()) continue;
-                for (InterfaceAddress a : i.getInterfaceAddresses()) {
-                    if (a.getAddress() instanceof Inet6Address) continue;
-                    result.add(a.getAddress());
-                    logger.info("interface: "+a.getAddress().getHostAddress());
-                }
+    /**
+     * Unregisters the service; the shared host stops with its last service.
+     */
+    public void stop() {
+        synchronized (NetPoint.class) {
+            host.unregister(this);
+            if (host==shared && host.tags().isEmpty()) {
+                shared.stop();
+                shared=null;
             }
-        } catch (IOException  e){ }
-        return result;
+        }
     }
 
+    public String tag() {
+        return tag;
+    }
 
-    private List<Integer>  findAvailablePorts() {
-        ArrayList<Integer> ports = new ArrayList<>();
-        for(InetAddress a:inetAddresses) {
-            try (ServerSocket socket = new ServerSocket(0,0,a)) {
-                ports.add(socket.getLocalPort());
-                continue;
-            } catch (IOException e) {
-            }
-            ports.add(0);
-        }
-        return ports;
+    public NetHost host() {
+        return host;
     }
 
-    private void startServers() {
-        for(int i=0;i<inetAddresses.size();i++) {
-            Server srv=new Server(inetAddresses.get(i),inetPorts.get(0));
-            servers.add(srv);
-        }
-        workersExecutor = Executors.newFixedThreadPool(maxClients*servers.size());
-        executor = Executors.newFixedThreadPool(servers.size()+1);
-        for(Server s:servers)
-            executor.submit(s);
-        executor.submit(new Broadcaster());
+    Options options() {
+        return options;
     }
 
-    private void stopWorkers() {
-        workersExecutor.shutdown();
-        try {
-            if (!workersExecutor.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
-                workersExecutor.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            workersExecutor.shutdownNow();
-        }
+    /**
+     * The typed handlers the service was started with, null for a plain consumer.
+     */
+    Handlers handlers() {
+        return handlers;
     }
 
-    private void stopServers() {
-        executor.shutdown();
+    byte[] process(String peer, String header, String json) throws IOException {
+        String[] arr=header.split(",");
+        String clsname=arr[1];
+        COMMANDS cmd= COMMANDS.valueOf(arr[0]);
+        long start = System.nanoTime();
+        boolean failed = true;
+        String error = "aborted";
+        int replied = 0;
         try {
-            for(Server s:servers) s.disconnect();
-            if (!executor.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
-                executor.shutdownNow();
+            Class<?> cls;
+            Function<Object,Object> handler = null;
+            if (handlers != null) {
+                Handlers.Type t = handlers.type(clsname);
+                handler = t == null ? null : t.handler(cmd);
+                if (handler == null)
+                    throw new ClassNotFoundException(t == null ? "unsupported type " + clsname : t.unsupported(cmd));
+                cls = t.cls;
+            } else
+                cls = Protocol.classFor(clsname);
+            Object o = JsonCodec.JSON.reader(cls).readValue(json);
+            metrics.decode().record(System.nanoTime() - start, false);
+            ResponseCache cache = options.cache;
+            ResponseCache.Key key = cache == null ? null : cache.key(cls, o);
+            if (key != null && cmd == COMMANDS.LOAD) {
+                ResponseCache.Entry cached = cache.get(key, ResponseCache.TEXT);
+                if (cached != null) {
+                    failed = false;
+                    byte[] text = cached.data(ResponseCache.TEXT);
+                    replied = text.length;
+                    return text;
+                }
             }
-        } catch (InterruptedException e) {
-            executor.shutdownNow();
+            long since = key == null ? 0 : cache.version();
+            Object reply = apply(cmd, o, key, handler, 0);
+            Iterator<?> items = Streams.items(reply);
+            if (items != null) reply = Streams.collect(items);
+            failed = false;
+            if (reply == null) return null;
+            long encoding = System.nanoTime();
+            byte[] data = JsonCodec.JSON.encode(reply);
+            metrics.encode().record(System.nanoTime() - encoding, false);
+            ByteArrayOutputStream bo = new ByteArrayOutputStream(data.length + 64);
+            bo.write((reply.getClass().getName()+"\n").getBytes());
+            bo.write(data);
+            bo.write('\n');
+            byte[] text = bo.toByteArray();
+            replied = text.length;
+            if (key != null && cmd == COMMANDS.LOAD) cache.put(key, ResponseCache.TEXT, reply.getClass(), text, since);
+            return text;
+        } catch (ClassNotFoundException e) {
+            logger.error("worker " + peer + " - " + e.toString());
+            error = e.toString();
+        } finally {
+            long nanos = System.nanoTime() - start;
+            metrics.command(cmd).record(nanos, failed);
+            options.tracer.trace(peer, cmd, clsname, json.length(), replied, nanos, failed ? error : null);
         }
+        return null;
     }
 
+    /**
+     * The load of the host, shared by all of its services.
+     */
+    public Load load() {
+        return host.load();
+    }
 
-    class ServerWorker implements  Runnable {
-        Socket socket;
-        BufferedReader input;
-        OutputStream output;
-        Semaphore semaphore;
+    public Metrics metrics() {
+        return metrics;
+    }
 
-        public ServerWorker() {
-            semaphore=new Semaphore(1);
-            try{
-             semaphore.acquire();
-            }catch (InterruptedException e){}
-        }
+    public ResponseCache cache() {
+        return options.cache;
+    }
 
-        public boolean isFree() {
-            return socket==null && semaphore.availablePermits()==0;
-        }
+    public Tracer tracer() {
+        return options.tracer;
+    }
 
-        public void start(Socket socket) {
-            this.socket=socket;
-            semaphore.release();
+    /**
+     * Runs the handler of the request type, or else the consumer; a SAVE or DELETE drops the cached replies of its key afterwards.
+     */
+    private Object apply(COMMANDS cmd, Object o, ResponseCache.Key key, Function<Object,Object> handler, long until) {
+        long start = System.nanoTime();
+        long[] current = deadline.get();
+        current[0] = until;
+        try {
+            return handler != null ? handler.apply(o) : consumer.apply(cmd, o);
+        } finally {
+            current[0] = 0;
+            host.latency.record((System.nanoTime() - start) / 1000);
+            if (key != null && cmd != COMMANDS.LOAD) options.cache.invalidate(key);
         }
+    }
 
-        public void stop() {
-            disconnect();
-            this.socket=null;
+    /**
+     * Handles one binary frame and answers through the protocol sink, so replies of
+     * concurrently processed requests may go out in any order.
+     */
+    void process(String peer, Protocol protocol, Frame f) throws IOException {
+        if (!f.isRequest()) {
+            protocol.accept(f);
+            if (f.op==Frame.HELLO) protocol.hello(f.id);
+            return;
         }
+        if ((f.flags & Frame.BATCH) != 0)
+            batch(peer, protocol, f, Frame.command(f.op), System.nanoTime());
+        else
+            reply(peer, protocol, f, Frame.command(f.op), System.nanoTime());
+    }
 
-        public void disconnect() {
-            try {
-                input.close();
-                output.close();
-                socket.close();
-                logger.info("server disconnected");
-            }catch (IOException e) {
-                logger.error(e.toString());
-            }
-        }
+    /**
+     * Counts and traces a request before its last frame goes out, so a client that got the reply sees it counted.
+     */
+    private void done(String peer, COMMANDS cmd, String name, int received, int sent, long start, String error) {
+        long nanos = System.nanoTime() - start;
+        metrics.command(cmd).record(nanos, error != null);
+        options.tracer.trace(peer, cmd, name, received, sent, nanos, error);
+    }
 
-        public void run() {
-            while (true) {
-                try {
-                    while (!semaphore.tryAcquire(100, TimeUnit.MICROSECONDS)) ;
-                    logger.info("worker " + socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort() + " (" + currClients + ") started");
-                    input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    output = socket.getOutputStream();
-                    while (!workersExecutor.isShutdown()) {
-                        String line = input.readLine();
-                        if (line==null) break;
-                        String[] arr=line.split(",");
-                        String clsname=arr[1];
-                        COMMANDS cmd= COMMANDS.valueOf(arr[0]);
-                        String json = input.readLine();
-                        if (json == null) break;
-                        logger.info("worker " + socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort() + " read:" + clsname + "," + json);
-                        try {
-                            Object o = new ObjectMapper().readValue(json, Class.forName(clsname));
-                            Object reply = consumer.apply(cmd,o);
-                            if (reply != null) {
-                                json = new ObjectMapper().writeValueAsString(reply);
-                                ByteArrayOutputStream bo = new ByteArrayOutputStream();
-                                bo.write((reply.getClass().getName()+"\n").getBytes());
-                                bo.write((json+"\n").getBytes());
-                                output.write(bo.toByteArray());
-                                logger.info("worker " + socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort() + " write:" + reply.getClass().getName() + "," + json);
-                            }
-                        } catch (ClassNotFoundException e) {
-                            logger.error("worker " + socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort() + " - " + e.toString());
-                        }
-                    }
-                    logger.info("worker " + socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort() + " stopped");
-                }catch(IOException | InterruptedException e){
-                    logger.error("worker " + socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort() + "-" + e.toString());
-                } finally{
-                    stop();
-                }
+    /**
+     * Answers a request frame, false if it failed with an error reply.
+     */
+    private boolean reply(String peer, Protocol protocol, Frame f, COMMANDS cmd, long start) throws IOException {
+        Class<?> type;
+        byte[] data = null;
+        ByteBuffer frame = null;
+        int received = f.payload.remaining();
+        String name = null;
+        if (f.expired()) return expired(peer, protocol, f, cmd, name, received, start);
+        try {
+            Class<?> cls=protocol.type(f.type);
+            name = cls.getName();
+            Function<Object,Object> handler = null;
+            if (handlers != null) {
+                Handlers.Type t = protocol.handlers(f.type);
+                handler = t == null ? null : t.handler(cmd);
+                if (handler == null) throw new IOException(t == null ? "unsupported type " + name : t.unsupported(cmd));
+            }
+            long decoding = System.nanoTime();
+            Object o = protocol.codec.decode(protocol.payload(f), cls);
+            metrics.decode().record(System.nanoTime() - decoding, false);
+            ResponseCache cache = options.cache;
+            ResponseCache.Key key = cache == null ? null : cache.key(cls, o);
+            int format = protocol.codec.id();
+            ResponseCache.Entry cached = key != null && cmd == COMMANDS.LOAD ? cache.get(key, format) : null;
+            if (cached != null) {
+                type = cached.type;
+                data = cached.data(format);
+            } else {
+                long since = key == null ? 0 : cache.version();
+                Object reply = apply(cmd, o, key, handler, f.deadline);
+                Iterator<?> items = Streams.items(reply);
+                if (items != null && (f.flags & Frame.STREAM) != 0)
+                    return stream(peer, protocol, f, cmd, name, received, start, items);
+                if (items != null) reply = Streams.collect(items);
+                type = reply == null ? null : reply.getClass();
+                long encoding = System.nanoTime();
+                // a reply that is cached stays a byte[], any other is encoded straight into its frame
+                if (reply == null)
+                    data = Protocol.NONE;
+                else if (key != null && cmd == COMMANDS.LOAD)
+                    data = protocol.codec.encode(reply);
+                else
+                    frame = protocol.encode(reply);
+                if (reply != null) metrics.encode().record(System.nanoTime() - encoding, false);
+                if (key != null && cmd == COMMANDS.LOAD && reply != null) cache.put(key, format, type, data, since);
             }
+        } catch (IOException | RuntimeException e) {
+            logger.error("worker " + peer + " - " + e.toString());
+            done(peer, cmd, name, received, 0, start, e.toString());
+            protocol.error(f.id, e.toString());
+            return false;
         }
-
+        if (f.expired()) {
+            BufferPool.release(frame);
+            return expired(peer, protocol, f, cmd, name, received, start);
+        }
+        done(peer, cmd, name, received, frame == null ? data.length : frame.remaining() - Frame.HEADER_SIZE, start, null);
+        if (frame == null)
+            protocol.send(Frame.REPLY, (byte) 0, f.id, type, data);
+        else
+            protocol.send(Frame.REPLY, (byte) 0, f.id, type, frame);
+        return true;
     }
 
+    /**
+     * Answers a batch frame with one reply frame of results in the order of the items. An item that
+     * cannot be decoded, throws, or comes up after the deadline fails alone; the request as a whole
+     * only fails on a malformed payload.
+     */
+    private boolean batch(String peer, Protocol protocol, Frame f, COMMANDS cmd, long start) throws IOException {
+        int received = f.payload.remaining();
+        String name = "batch";
+        if (f.expired()) return expired(peer, protocol, f, cmd, name, received, start);
+        ByteBuffer frame;
+        int failed = 0;
+        Object[] results;
+        try {
+            long decoding = System.nanoTime();
+            List<Integer> ids = new ArrayList<>();
+            Map<Integer,Function<Object,Object>> run = handlers == null ? null : new HashMap<>();
+            List<Object> items = protocol.decodeBatch(protocol.payload(f), ids,
+                    run == null ? null : id -> refusal(protocol, cmd, id, run));
+            metrics.decode().record(System.nanoTime() - decoding, false);
+            results = applyAll(cmd, items, ids, run, protocol, f.deadline);
+            for (Object r : results)
+                if (r instanceof Batch.Failure || r instanceof Throwable) failed++;
+            long encoding = System.nanoTime();
+            frame = protocol.encodeBatch(Arrays.asList(results), 0);
+            metrics.encode().record(System.nanoTime() - encoding, false);
+        } catch (IOException | RuntimeException e) {
+            logger.error("worker " + peer + " - " + e.toString());
+            done(peer, cmd, name, received, 0, start, e.toString());
+            protocol.error(f.id, e.toString());
+            return false;
+        }
+        if (f.expired()) {
+            BufferPool.release(frame);
+            return expired(peer, protocol, f, cmd, name, received, start);
+        }
+        done(peer, cmd, name, received, frame.remaining() - Frame.HEADER_SIZE, start,
+                failed == 0 ? null : failed + " of " + results.length + " items failed");
+        protocol.send(Frame.REPLY, Frame.BATCH, f.id, null, frame);
+        return true;
+    }
 
-    class Server implements Runnable {
-        ServerSocket socket;
-        InetAddress address;
-        Integer port;
-        boolean started=false;
-
-        public Server(InetAddress address, Integer port) {
-            this.address = address;
-            this.port = port;
+    /**
+     * Why the typed handlers refuse items of the type id for the command, null if they take them.
+     * The handler of a type is looked up once per batch, and kept in run.
+     */
+    private static String refusal(Protocol protocol, COMMANDS cmd, int id, Map<Integer,Function<Object,Object>> run) {
+        if (run.containsKey(id)) return null;
+        Handlers.Type t = protocol.handlers(id);
+        Function<Object,Object> handler = t == null ? null : t.handler(cmd);
+        if (handler != null) {
+            run.put(id, handler);
+            return null;
         }
-        public boolean isStarted() {
-            return started;
+        if (t != null) return t.unsupported(cmd);
+        try {
+            return "unsupported type " + protocol.type(id).getName();
+        } catch (IOException e) {
+            return e.getMessage();
         }
-        public void disconnect()  {
-            try {
-                socket.close();
-            }catch (IOException e) {
-                logger.error(e.toString());
+    }
+
+    /**
+     * The results of the items of a batch: cached replies as they are, the others from the handler
+     * of their type or the consumer, and failures for the items that failed.
+     */
+    private Object[] applyAll(COMMANDS cmd, List<Object> items, List<Integer> ids, Map<Integer,Function<Object,Object>> run,
+                              Protocol protocol, long until) throws IOException {
+        Codec codec = protocol.codec;
+        Object[] results = new Object[items.size()];
+        ResponseCache cache = options.cache;
+        ResponseCache.Key[] keys = new ResponseCache.Key[results.length];
+        int[] pending = new int[results.length];
+        int n = 0;
+        for (int i = 0; i < results.length; i++) {
+            Object o = items.get(i);
+            if (o == null || o instanceof Batch.Failure) {
+                results[i] = o;
+                continue;
             }
+            // keyed by the wire type like single requests, so both find the same entries
+            keys[i] = cache == null ? null : cache.key(protocol.type(ids.get(i)), o);
+            ResponseCache.Entry cached = keys[i] != null && cmd == COMMANDS.LOAD ? cache.get(keys[i], codec.id()) : null;
+            if (cached != null)
+                results[i] = new Batch.Encoded(cached.type, cached.data(codec.id()));
+            else
+                pending[n++] = i;
         }
-        void warmUpThreads() {
-            for(int i=0;i<maxClients;i++) {
-                ServerWorker c=new ServerWorker();
-                clients.add(c);
-                workersExecutor.submit(c);
+        long since = cache == null ? 0 : cache.version();
+        if (consumer instanceof BatchConsumer && n > 0) {
+            List<Object> args = new ArrayList<>(n);
+            for (int j = 0; j < n; j++) args.add(items.get(pending[j]));
+            List<?> replies = applyAll(cmd, args, keys, until);
+            for (int j = 0; j < n; j++) {
+                int i = pending[j];
+                results[i] = cached(cmd, keys[i], replies.get(j), codec, since);
             }
-        }
-        ServerWorker getFreeWorker() {
-            long start=System.currentTimeMillis();
-            ServerWorker worker = clients.poll();
-            while (worker!=null
-                    && !worker.isFree()
-                    && System.currentTimeMillis()-start<1000) {
-                worker = clients.poll();
+        } else if (options.parallelBatches) {
+            IntStream.range(0, n).parallel().forEach(j -> {
+                int i = pending[j];
+                results[i] = one(cmd, items.get(i), keys[i], run == null ? null : run.get(ids.get(i)), codec, since, until);
+            });
+        } else {
+            for (int j = 0; j < n; j++) {
+                int i = pending[j];
+                results[i] = one(cmd, items.get(i), keys[i], run == null ? null : run.get(ids.get(i)), codec, since, until);
             }
-            return worker.isFree()?worker:null;
         }
-        public void run() {
-            while (!executor.isShutdown()) {
-                try {
-                    warmUpThreads();
-                    socket = new ServerSocket(port, 0, address);
-                    socket.setReuseAddress(true);
-                    logger.info(address.getHostAddress()+":"+port+" started");
-                    started=true;
-                    while (!executor.isShutdown()) {
-                        Socket clientSocket = socket.accept();
-                        if (clientSocket != null) {
-                            ServerWorker worker=getFreeWorker();
-                            if (worker!=null) {
-                                worker.start(clientSocket);
-                                clients.addLast(worker);
-                            } else {
-                                clientSocket.close();
-                                continue;
-                            };
-                        }
-                    }
-                    logger.info(address.getHostAddress()+":"+port+" stopped");
-                } catch (IOException e) {
-                    logger.error(address.getHostAddress()+":"+port+"-"+e.toString());
-                }
-            }
+        return results;
+    }
+
+    private Object one(COMMANDS cmd, Object o, ResponseCache.Key key, Function<Object,Object> handler, Codec codec,
+                       long since, long until) {
+        if (until != 0 && System.nanoTime() - until > 0) return new Batch.Failure(EXPIRED);
+        try {
+            Object reply = apply(cmd, o, key, handler, until);
+            Iterator<?> items = Streams.items(reply);
+            if (items != null) reply = Streams.collect(items);
+            return cached(cmd, key, reply, codec, since);
+        } catch (RuntimeException e) {
+            return new Batch.Failure(e.toString());
         }
     }
 
-    class Broadcaster implements Runnable {
-        MulticastSocket socket = null;
-        String msg;
-        public Broadcaster() {
-            StringBuilder b=new StringBuilder();
-            b.append("mnc,");
-            b.append(tag);
-            b.append(",");
-            for(int i=0;i<inetAddresses.size();i++) {
-                if (i>0) b.append(",");
-                b.append(inetAddresses.get(i).getHostAddress()+":"+inetPorts.get(0));
-            }
-            msg=b.toString();
+    /**
+     * Hands the items to the {@link BatchConsumer}, failing them all if it throws or does not
+     * return one result per item.
+     */
+    private List<?> applyAll(COMMANDS cmd, List<Object> items, ResponseCache.Key[] keys, long until) {
+        long start = System.nanoTime();
+        long[] current = deadline.get();
+        current[0] = until;
+        List<?> replies;
+        try {
+            replies = ((BatchConsumer) consumer).applyAll(cmd, items);
+            if (replies == null || replies.size() != items.size())
+                throw new IllegalStateException((replies == null ? 0 : replies.size()) + " results for " + items.size() + " items");
+        } catch (RuntimeException e) {
+            replies = Collections.nCopies(items.size(), new Batch.Failure(e.toString()));
+        } finally {
+            current[0] = 0;
+            host.latency.record((System.nanoTime() - start) / 1000);
+            if (cmd != COMMANDS.LOAD)
+                for (ResponseCache.Key key : keys)
+                    if (key != null) options.cache.invalidate(key);
         }
-        public void disconnect() {
-            socket.close();
+        return replies;
+    }
+
+    /**
+     * A LOAD result of a cached request, encoded once for the cache and the reply alike.
+     */
+    private Object cached(COMMANDS cmd, ResponseCache.Key key, Object reply, Codec codec, long since) {
+        if (key == null || cmd != COMMANDS.LOAD || reply == null || reply instanceof Throwable) return reply;
+        try {
+            byte[] data = codec.encode(reply);
+            options.cache.put(key, codec.id(), reply.getClass(), data, since);
+            return new Batch.Encoded(reply.getClass(), data);
+        } catch (IOException | RuntimeException e) {
+            return new Batch.Failure(e.toString());
         }
-        public void run() {
-            while(!executor.isShutdown()) {
-                try {
-                    socket = new MulticastSocket(MULTICAST_PORT);
-                    logger.info("multicast server "+MULTICAST_ADDRESS+":"+MULTICAST_PORT+" started");
-                    byte[] buf = msg.getBytes();
-                    InetAddress address = InetAddress.getByName(MULTICAST_ADDRESS);
-                    DatagramPacket pckt = new DatagramPacket(buf, buf.length, address, MULTICAST_PORT);
-                    while(!executor.isShutdown()) {
-                        if (currClients<maxClients) {
-                            socket.send(pckt);
-                            logger.info("multicast server "+MULTICAST_ADDRESS+":"+MULTICAST_PORT+" a packet sent: ("+currClients+" of "+maxClients+")");
-                        }
-                        Thread.sleep(MULTICAST_INTERVAL);
-                    }
-                    socket.close();
-                    logger.info("multicast server "+MULTICAST_ADDRESS+":"+MULTICAST_PORT+" stopped");
-                }catch(IOException | InterruptedException e) {
-                    logger.error("multicast server "+MULTICAST_ADDRESS+":"+MULTICAST_PORT+"-"+e.toString());
+    }
+
+    /**
+     * Drops a request whose client gave up waiting, answering with a short error in place of the reply.
+     */
+    private boolean expired(String peer, Protocol protocol, Frame f, COMMANDS cmd, String name, int received,
+                            long start) throws IOException {
+        metrics.expired();
+        done(peer, cmd, name, received, 0, start, EXPIRED);
+        protocol.error(f.id, EXPIRED);
+        return false;
+    }
+
+    /**
+     * Milliseconds the client of the request being handled on this thread still waits for it, or
+     * Long.MAX_VALUE if it set no deadline. A consumer can cut work short, or skip it, when this
+     * gets low; a reply that comes too late is not sent anyway.
+     */
+    public static long remainingBudget() {
+        long until = deadline.get()[0];
+        if (until == 0) return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(until - System.nanoTime()));
+    }
+
+    /**
+     * Sends the items of a result as CHUNK frames, never more ahead than the client granted, then END.
+     * A client that cancels ends it quietly, one that grants nothing for too long gets an error.
+     */
+    private boolean stream(String peer, Protocol protocol, Frame f, COMMANDS cmd, String name, int received,
+                           long start, Iterator<?> items) throws IOException {
+        Protocol.Credit credit = protocol.openStream(f.id);
+        int sent = 0;
+        String error = null;
+        try {
+            while (items.hasNext()) {
+                if (!protocol.await(credit)) {
+                    if (!credit.cancelled) error = "stream stalled";
+                    break;
                 }
+                Object item = items.next();
+                if (item == null) continue;
+                long encoding = System.nanoTime();
+                ByteBuffer frame = protocol.encode(item);
+                metrics.encode().record(System.nanoTime() - encoding, false);
+                sent += frame.remaining() - Frame.HEADER_SIZE;
+                protocol.send(Frame.CHUNK, (byte) 0, f.id, item.getClass(), frame);
             }
+        } catch (RuntimeException e) {
+            error = e.toString();
+        } catch (IOException e) {
+            done(peer, cmd, name, received, sent, start, e.toString());
+            throw e;
+        } finally {
+            protocol.closeStream(f.id);
+            Streams.close(items);
         }
+        done(peer, cmd, name, received, sent, start, error);
+        if (error != null) {
+            logger.error("worker " + peer + " - " + error);
+            protocol.error(f.id, error);
+        } else if (!credit.cancelled)
+            protocol.send(Frame.END, (byte) 0, f.id, null, Protocol.NONE);
+        return error == null;
     }
-
-
 }
@@ -0,0 +1,540 @@
+package micro;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Per-connection state of the binary protocol, shared by client and server:
+ * the type tables of both directions and the reusable read buffers.
+ * Frames go out through a {@link Sink}; {@link #send} keeps a TYPE frame ahead of
+ * every frame that uses it when many threads answer on one connection.
+ */
+class Protocol {
+    interface Sink {
+        void write(ByteBuffer[] buffers) throws IOException;
+    }
+
+    /**
+     * Reads and handles the next frame of a connection whose reading thread is busy streaming.
+     */
+    interface Source {
+        boolean read() throws IOException;
+    }
+
+    /**
+     * Items of a streamed reply the client may still take.
+     */
+    static class Credit {
+        final Semaphore permits = new Semaphore(WINDOW);
+        volatile boolean cancelled = false;
+
+        void cancel() {
+            cancelled = true;
+            permits.release(WINDOW);
+        }
+    }
+
+    final static byte[] NONE = new byte[0];
+    // items of a stream in flight before the client grants more
+    final static int WINDOW = 32;
+
+    // ends with a newline so that a text-only server fails on the hello right away instead of waiting for a line
+    private final static byte[] GREETING = "MicroRest\n".getBytes(StandardCharsets.US_ASCII);
+    private final static Map<String,Class<?>> classes = new ConcurrentHashMap<>();
+
+    private final Map<Integer,Class<?>> inTypes = new ConcurrentHashMap<>();
+    private final Map<Integer,Handlers.Type> inHandlers = new ConcurrentHashMap<>();
+    private final Map<Integer,String> unsupported = new ConcurrentHashMap<>();
+    private final Map<Class<?>,Integer> outTypes = new ConcurrentHashMap<>();
+    // types whose TYPE frame went out, guarded by the protocol
+    private final Set<Class<?>> announced = new HashSet<>();
+    private final AtomicInteger nextType = new AtomicInteger(1);
+    private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private ByteBuffer payload = ByteBuffer.allocate(4*1024);
+    private boolean primed = false;
+    private Codec preferred;
+    private NetPoint.COMPRESSION compressible;
+    private int threshold;
+    private Metrics metrics;
+    private Handlers handlers;
+    private Sink sink;
+    private Source source;
+    private final Map<Integer,Credit> credits = new ConcurrentHashMap<>();
+    byte version = Frame.VERSION;
+    Codec codec = JsonCodec.JSON;
+    NetPoint.COMPRESSION compression;
+
+    /**
+     * Payloads of at least threshold bytes go out compressed once the peer agreed on a compression.
+     */
+    Protocol(Codec preferred, NetPoint.COMPRESSION compression, int threshold, Metrics metrics) {
+        configure(preferred, compression, threshold, metrics);
+    }
+
+    /**
+     * A server side connection, set up with {@link #configure} once the hello named the service.
+     */
+    Protocol() {
+        this(JsonCodec.JSON, NetPoint.COMPRESSION.NONE, 0, null);
+    }
+
+    void configure(Codec preferred, NetPoint.COMPRESSION compression, int threshold, Metrics metrics) {
+        this.preferred = preferred;
+        this.codec = preferred;
+        this.compressible = compression;
+        this.compression = compression;
+        this.threshold = threshold;
+        this.metrics = metrics;
+    }
+
+    static Class<?> classFor(String name) throws ClassNotFoundException {
+        Class<?> cls = classes.get(name);
+        if (cls == null) {
+            cls = Class.forName(name);
+            classes.put(name, cls);
+        }
+        return cls;
+    }
+
+    /**
+     * The hello carries the codec id in its flags: the client proposes, the server answers
+     * with the one it accepted, falling back to JSON for ids it does not know.
+     */
+    private Codec codec(byte id) {
+        if (preferred.id() == id) return preferred;
+        if (SmileCodec.SMILE.id() == id) return SmileCodec.SMILE;
+        return JsonCodec.JSON;
+    }
+
+    /**
+     * Restricts the types a server connection takes to those of the handlers.
+     */
+    void handlers(Handlers handlers) {
+        this.handlers = handlers;
+    }
+
+    void sink(Sink sink) {
+        this.sink = sink;
+    }
+
+    void source(Source source) {
+        this.source = source;
+    }
+
+    Credit openStream(int id) {
+        Credit c = new Credit();
+        credits.put(id, c);
+        return c;
+    }
+
+    void closeStream(int id) {
+        credits.remove(id);
+    }
+
+    void cancelStreams() {
+        for (Credit c : credits.values()) c.cancel();
+    }
+
+    /**
+     * Takes the credit for one item, reading frames off the connection meanwhile if this thread
+     * is its reader. False if the client cancelled, went away or granted nothing for too long.
+     */
+    boolean await(Credit c) throws IOException {
+        while (!c.cancelled) {
+            if (c.permits.tryAcquire()) return !c.cancelled;
+            if (source != null) {
+                if (!source.read()) c.cancel();
+                continue;
+            }
+            try {
+                return c.permits.tryAcquire(Streams.TIMEOUT, TimeUnit.MILLISECONDS) && !c.cancelled;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    void credit(int id, int items) throws IOException {
+        byte[] n = ByteBuffer.allocate(4).putInt(items).array();
+        write(Frame.CREDIT, (byte) 0, id, null, n);
+    }
+
+    void cancel(int id) throws IOException {
+        write(Frame.CANCEL, (byte) 0, id, null, NONE);
+    }
+
+    /**
+     * The compression goes in the type field, which older peers leave 0 (none): the client
+     * proposes one, the server echoes it unless it does not compress at all.
+     */
+    synchronized void hello(int id) throws IOException {
+        hello(id, null);
+    }
+
+    /**
+     * A client names the service it wants after the greeting; older servers ignore it.
+     */
+    synchronized void hello(int id, String tag) throws IOException {
+        byte[] name = tag == null ? NONE : tag.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer h = Frame.header(Frame.HELLO, codec.id(), id, compression.ordinal(), GREETING.length + name.length);
+        h.put(1, version);
+        sink.write(new ByteBuffer[]{h, ByteBuffer.wrap(GREETING), ByteBuffer.wrap(name)});
+    }
+
+    /**
+     * The service tag of a hello, null if the client did not name one.
+     */
+    static String tag(Frame hello) {
+        ByteBuffer b = hello.payload.duplicate();
+        if (b.remaining() <= GREETING.length) return null;
+        b.position(b.position() + GREETING.length);
+        return StandardCharsets.UTF_8.decode(b).toString();
+    }
+
+    /**
+     * Puts back bytes that were read off the channel to detect the protocol.
+     */
+    void prime(ByteBuffer first) {
+        header.clear();
+        header.put(first);
+        primed = true;
+    }
+
+    /**
+     * Takes in a control frame. A CREDIT of anything but 1 to {@link #WINDOW} items is a protocol
+     * error, and the connection is closed.
+     */
+    void accept(Frame f) throws IOException {
+        if (f.op == Frame.HELLO) {
+            version = (byte) Math.min(f.version, Frame.VERSION);
+            codec = codec(f.flags);
+            NetPoint.COMPRESSION[] all = NetPoint.COMPRESSION.values();
+            compression = compressible == NetPoint.COMPRESSION.NONE || f.type <= 0 || f.type >= all.length
+                    ? NetPoint.COMPRESSION.NONE : all[f.type];
+        } else if (f.op == Frame.CREDIT) {
+            if (f.payload.remaining() < 4) throw new IOException("bad credit");
+            int items = f.payload.getInt(f.payload.position());
+            if (items < 1 || items > WINDOW) throw new IOException("bad credit " + items);
+            Credit c = credits.get(f.id);
+            // a client never has more than a window granted, however often it grants
+            if (c != null) c.permits.release(Math.min(items, Math.max(0, WINDOW - c.permits.availablePermits())));
+        } else if (f.op == Frame.CANCEL) {
+            Credit c = credits.get(f.id);
+            if (c != null) c.cancel();
+        } else if (f.op == Frame.TYPE) {
+            String name = StandardCharsets.UTF_8.decode(f.payload.duplicate()).toString();
+            if (handlers != null) {
+                Handlers.Type t = handlers.type(name);
+                if (t == null) {
+                    unsupported.put(f.type, name);
+                    return;
+                }
+                inHandlers.put(f.type, t);
+                inTypes.put(f.type, t.cls);
+                return;
+            }
+            try {
+                inTypes.put(f.type, classFor(name));
+            } catch (ClassNotFoundException e) {
+                NetPoint.logger.error("unknown type " + name);
+            }
+        }
+    }
+
+    Class<?> type(int id) throws IOException {
+        Class<?> cls = inTypes.get(id);
+        if (cls != null) return cls;
+        String name = unsupported.get(id);
+        throw new IOException(name != null ? "unsupported type " + name : "unknown type id " + id);
+    }
+
+    /**
+     * The handlers of an announced type, null without {@link #handlers}.
+     */
+    Handlers.Type handlers(int id) {
+        return inHandlers.get(id);
+    }
+
+    void send(byte op, byte flags, int id, Class<?> cls, byte[] data) throws IOException {
+        if (compression != NetPoint.COMPRESSION.NONE && data.length >= threshold && cls != null) {
+            byte[] compressed = compress(data);
+            if (compressed != null) {
+                data = compressed;
+                flags |= Frame.COMPRESSED;
+            }
+        }
+        write(op, flags, id, cls, data);
+    }
+
+    /**
+     * Sends a frame of {@link #encode}, filling in its header. The buffer belongs to the
+     * protocol from here on and goes back to the pool once written.
+     */
+    void send(byte op, byte flags, int id, Class<?> cls, ByteBuffer frame) throws IOException {
+        int offset = Frame.HEADER_SIZE + ((flags & Frame.DEADLINE) != 0 ? 4 : 0);
+        int length = frame.remaining() - offset;
+        if (compression != NetPoint.COMPRESSION.NONE && length >= threshold && (cls != null || (flags & Frame.BATCH) != 0)) {
+            byte[] data = new byte[length];
+            frame.position(offset);
+            frame.get(data);
+            frame.position(0);
+            byte[] compressed = compress(data);
+            if (compressed != null) {
+                // the budget stays in front, uncompressed
+                frame.limit(offset + compressed.length);
+                frame.position(offset);
+                frame.put(compressed).flip();
+                flags |= Frame.COMPRESSED;
+            }
+        }
+        write(op, flags, id, cls, frame);
+    }
+
+    /**
+     * The data compressed, null if that would not make it smaller.
+     */
+    private byte[] compress(byte[] data) {
+        long start = System.nanoTime();
+        byte[] compressed = Compressor.compress(compression, data);
+        metrics.compress().record(System.nanoTime() - start, false);
+        metrics.compressed(data.length, compressed == null ? data.length : compressed.length);
+        return compressed;
+    }
+
+    ByteBuffer encode(Object value) throws IOException {
+        return encode(value, 0);
+    }
+
+    /**
+     * Encodes a value into a pooled buffer, leaving room for the frame header in front of it.
+     * A budget above 0 goes in front of the payload, for a request sent with {@link Frame#DEADLINE}.
+     */
+    ByteBuffer encode(Object value, int budget) throws IOException {
+        BufferPool.Output out = new BufferPool.Output(Frame.HEADER_SIZE + (budget > 0 ? 4 : 0), 512);
+        try {
+            codec.encode(value, out);
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        ByteBuffer frame = out.buffer();
+        if (budget > 0) frame.putInt(Frame.HEADER_SIZE, budget);
+        return frame;
+    }
+
+    /**
+     * Encodes the items of a batch into a pooled buffer as {@link Frame} describes, and sends the
+     * TYPE frames of their classes that did not go out yet. Besides objects, the items may be
+     * null, {@link Batch.Encoded} or failures: a {@link Batch.Failure} or any Throwable. An item
+     * the codec cannot encode fails alone.
+     */
+    ByteBuffer encodeBatch(List<?> items, int budget) throws IOException {
+        BufferPool.Output out = new BufferPool.Output(Frame.HEADER_SIZE + (budget > 0 ? 4 : 0), 64 * items.size() + 4);
+        Set<Class<?>> classes = new HashSet<>();
+        try {
+            out.writeInt(items.size());
+            for (Object item : items) {
+                if (item == null) {
+                    out.writeInt(0);
+                    out.writeInt(0);
+                    continue;
+                }
+                if (item instanceof Batch.Failure || item instanceof Throwable) {
+                    failure(out, item instanceof Batch.Failure ? ((Batch.Failure) item).message : item.toString());
+                    continue;
+                }
+                Class<?> cls = item instanceof Batch.Encoded ? ((Batch.Encoded) item).type : item.getClass();
+                int mark = out.position();
+                out.writeInt(typeId(cls));
+                out.writeInt(0);
+                try {
+                    if (item instanceof Batch.Encoded)
+                        out.write(((Batch.Encoded) item).data);
+                    else
+                        codec.encode(item, out);
+                } catch (IOException | RuntimeException e) {
+                    out.reset(mark);
+                    failure(out, e.toString());
+                    continue;
+                }
+                out.putInt(mark + 4, out.position() - mark - 8);
+                classes.add(cls);
+            }
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        ByteBuffer frame = out.buffer();
+        if (budget > 0) frame.putInt(Frame.HEADER_SIZE, budget);
+        try {
+            announce(classes);
+        } catch (IOException e) {
+            BufferPool.release(frame);
+            throw e;
+        }
+        return frame;
+    }
+
+    private static void failure(BufferPool.Output out, String message) {
+        byte[] m = message.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(-1);
+        out.writeInt(m.length);
+        out.write(m, 0, m.length);
+    }
+
+    /**
+     * The items of a batch payload in order. An item that failed, or that cannot be decoded,
+     * is a {@link Batch.Failure}; only a malformed payload fails as a whole.
+     */
+    List<Object> decodeBatch(ByteBuffer payload) throws IOException {
+        return decodeBatch(payload, null, null);
+    }
+
+    /**
+     * Also adds the type id of each item to ids, 0 for one that is null or failed. An item whose
+     * type id the refusal names a reason for fails with it, without being decoded.
+     */
+    List<Object> decodeBatch(ByteBuffer payload, List<Integer> ids, IntFunction<String> refusal) throws IOException {
+        ByteBuffer in = payload.duplicate();
+        if (in.remaining() < 4) throw new IOException("bad batch");
+        int n = in.getInt();
+        if (n < 0 || n > in.remaining() / 8) throw new IOException("bad batch size " + n);
+        List<Object> items = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            if (in.remaining() < 8) throw new IOException("bad batch item " + i);
+            int type = in.getInt();
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) throw new IOException("bad batch item " + i);
+            ByteBuffer item = in.duplicate();
+            item.limit(in.position() + length);
+            in.position(in.position() + length);
+            String refused = type > 0 && refusal != null ? refusal.apply(type) : null;
+            if (type == 0) {
+                items.add(null);
+            } else if (type == -1) {
+                items.add(new Batch.Failure(StandardCharsets.UTF_8.decode(item).toString()));
+            } else if (refused != null) {
+                items.add(new Batch.Failure(refused));
+            } else {
+                try {
+                    items.add(codec.decode(item, type(type)));
+                } catch (IOException | RuntimeException e) {
+                    items.add(new Batch.Failure(e.toString()));
+                }
+            }
+            if (ids != null) ids.add(items.get(i) instanceof Batch.Failure || type < 0 ? 0 : type);
+        }
+        return items;
+    }
+
+    private synchronized void write(byte op, byte flags, int id, Class<?> cls, byte[] data) throws IOException {
+        ByteBuffer type = announce(cls);
+        ByteBuffer h = Frame.header(op, flags, id, typeId(cls), data.length);
+        sink.write(type == null ? new ByteBuffer[]{h, ByteBuffer.wrap(data)}
+                : new ByteBuffer[]{type, h, ByteBuffer.wrap(data)});
+    }
+
+    private synchronized void write(byte op, byte flags, int id, Class<?> cls, ByteBuffer frame) throws IOException {
+        ByteBuffer type = announce(cls);
+        Frame.header(frame, op, flags, id, typeId(cls));
+        sink.write(type == null ? new ByteBuffer[]{frame} : new ByteBuffer[]{type, frame});
+    }
+
+    /**
+     * The payload of a frame, decompressed if needed.
+     */
+    ByteBuffer payload(Frame f) throws IOException {
+        if ((f.flags & Frame.COMPRESSED) == 0) return f.payload;
+        long start = System.nanoTime();
+        ByteBuffer data = Compressor.decompress(compression, f.payload);
+        metrics.decompress().record(System.nanoTime() - start, false);
+        return data;
+    }
+
+    /**
+     * The TYPE frame to send ahead of the first frame of a class, null once it went out.
+     * Ids are taken by anyone, but announced under the lock of the frames that use them.
+     */
+    private ByteBuffer announce(Class<?> cls) {
+        if (cls == null || !announced.add(cls)) return null;
+        int type = typeId(cls);
+        byte[] name = cls.getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(Frame.HEADER_SIZE + name.length);
+        b.put(Frame.header(Frame.TYPE, (byte) 0, 0, type, name.length)).put(name).flip();
+        return b;
+    }
+
+    private synchronized void announce(Set<Class<?>> classes) throws IOException {
+        List<ByteBuffer> types = new ArrayList<>();
+        for (Class<?> cls : classes) {
+            ByteBuffer b = announce(cls);
+            if (b != null) types.add(b);
+        }
+        if (!types.isEmpty()) sink.write(types.toArray(new ByteBuffer[0]));
+    }
+
+    private int typeId(Class<?> cls) {
+        return cls == null ? 0 : outTypes.computeIfAbsent(cls, c -> nextType.getAndIncrement());
+    }
+
+    void error(int id, String message) throws IOException {
+        send(Frame.ERROR, (byte) 0, id, null, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Blocking read of the next frame. The payload is only valid until the next call.
+     * Returns null on a clean end of stream.
+     */
+    Frame read(ReadableByteChannel ch) throws IOException {
+        if (!primed) header.clear();
+        primed = false;
+        if (!readFully(ch, header, true)) return null;
+        header.flip();
+        int length = Frame.check(header);
+        if (payload.capacity() < length)
+            payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+        payload.clear().limit(length);
+        readFully(ch, payload, false);
+        payload.flip();
+        return new Frame(header.get(1), header.get(2), header.get(3), header.getInt(4), header.getInt(8), payload).received();
+    }
+
+    /**
+     * Writes the buffers whole, then gives the pooled ones back.
+     */
+    static void write(GatheringByteChannel ch, ByteBuffer[] buffers) throws IOException {
+        try {
+            long left = 0;
+            for (ByteBuffer b : buffers) left += b.remaining();
+            while (left > 0) left -= ch.write(buffers);
+        } finally {
+            BufferPool.release(buffers);
+        }
+    }
+
+    private static boolean readFully(ReadableByteChannel ch, ByteBuffer b, boolean eofAllowed) throws IOException {
+        while (b.hasRemaining()) {
+            if (ch.read(b) < 0) {
+                if (eofAllowed && b.position() == 0) return false;
+                throw new EOFException();
+            }
+        }
+        return true;
+    }
+}
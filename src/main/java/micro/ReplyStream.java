@@ -0,0 +1,185 @@
+package micro;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The items of a streamed reply, in the order the server sent them. Taking items grants the
+ * server credit for more, so no more than a window of them waits in memory. Failures surface
+ * from {@link #hasNext} as unchecked exceptions; close the stream to stop it early.
+ */
+public class ReplyStream<T> implements Iterator<T>, AutoCloseable {
+    private final static Object END = new Object();
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Protocol protocol;
+    private final int id;
+    private final Consumer<Throwable> done;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile Throwable error;
+    private Object next;
+    private int taken;
+
+    /**
+     * A stream of request id on the connection of the protocol, or one that is fed in one go
+     * for a null protocol. Done is called once when it ends, fails or is closed.
+     */
+    ReplyStream(Protocol protocol, int id, Consumer<Throwable> done) {
+        this.protocol = protocol;
+        this.id = id;
+        this.done = done;
+    }
+
+    void item(Object o) {
+        queue.add(o);
+    }
+
+    void end() {
+        queue.add(END);
+        finish(null);
+    }
+
+    void fail(Throwable e) {
+        error = e;
+        queue.add(END);
+        finish(e);
+    }
+
+    /**
+     * A reply that came whole: the elements of a collection, otherwise the object itself.
+     */
+    void reply(Object o) {
+        if (o instanceof Collection)
+            for (Object item : (Collection<?>) o) item(item);
+        else if (o != null)
+            item(o);
+        end();
+    }
+
+    private void finish(Throwable e) {
+        if (finished.compareAndSet(false, true)) done.accept(e);
+    }
+
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = queue.poll(Streams.TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (next == null) {
+                IOException e = new SocketTimeoutException("stream timed out");
+                close(e);
+                throw new UncheckedIOException(e);
+            }
+            if (next != END && protocol != null && ++taken == Protocol.WINDOW / 2) {
+                taken = 0;
+                try {
+                    protocol.credit(id, Protocol.WINDOW / 2);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        if (next != END) return true;
+        Throwable e = error;
+        if (e instanceof IOException) throw new UncheckedIOException((IOException) e);
+        if (e != null) throw new IllegalStateException(e);
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        T item = (T) next;
+        next = null;
+        return item;
+    }
+
+    /**
+     * Tells the server to stop sending, unless the stream is over already.
+     */
+    public void close() {
+        close(null);
+    }
+
+    private void close(Throwable cause) {
+        if (finished.get()) return;
+        if (protocol != null) {
+            try {
+                protocol.cancel(id);
+            } catch (IOException e) {
+            }
+        }
+        finish(cause);
+    }
+
+    /**
+     * Delivers the items of the streams it opens to subscribers, each on a thread of its own and
+     * no faster than they request.
+     */
+    static <T> Flow.Publisher<T> publisher(String name, Supplier<ReplyStream<T>> open) {
+        return subscriber -> {
+            Delivery<T> delivery = new Delivery<>(subscriber);
+            subscriber.onSubscribe(delivery);
+            Threads.start(name, () -> delivery.run(open));
+        };
+    }
+
+    private static class Delivery<T> implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private long demand;
+        private boolean cancelled;
+
+        Delivery(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public synchronized void request(long n) {
+            if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("request " + n));
+                return;
+            }
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            notifyAll();
+        }
+
+        public synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        private synchronized boolean take() throws InterruptedException {
+            while (demand == 0 && !cancelled) wait();
+            if (cancelled) return false;
+            demand--;
+            return true;
+        }
+
+        void run(Supplier<ReplyStream<T>> open) {
+            try (ReplyStream<T> items = open.get()) {
+                while (items.hasNext()) {
+                    if (!take()) return;
+                    subscriber.onNext(items.next());
+                }
+                subscriber.onComplete();
+            } catch (RuntimeException e) {
+                subscriber.onError(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package micro;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Size-bounded LRU cache of serialized LOAD replies for a {@link NetPoint}, so a repeated
+ * LOAD skips the consumer and the encoding. Entries are keyed by the request type and the
+ * key the extractor returns for the request, live for a fixed time, and are dropped by a
+ * SAVE or DELETE of the same key. A null key makes the request uncacheable.
+ * <pre>
+ * NetPoint.start(tag, 10, consumer, new NetPoint.Options()
+ *         .cache(new ResponseCache(10000, 60*1000, o -&gt; ((UserLocation) o).getName())));
+ * </pre>
+ */
+public class ResponseCache {
+    final static int TEXT = -1;
+
+    private final int maxEntries;
+    private final long ttl;
+    private final Function<Object,Object> key;
+    private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // bumped by every write, so a LOAD racing with it does not cache what it read before
+    private final AtomicLong version = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public ResponseCache(int maxEntries, long ttl, Function<Object,Object> key) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.key = key;
+    }
+
+    Key key(Class<?> type, Object request) {
+        Object k = key.apply(request);
+        return k == null ? null : new Key(type, k);
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * The cached reply in the given format (codec id or {@link #TEXT}), or null on a miss.
+     */
+    synchronized Entry get(Key k, int format) {
+        Entry e = entries.get(k);
+        if (e != null && System.currentTimeMillis() > e.expires) {
+            entries.remove(k);
+            expirations.increment();
+            e = null;
+        }
+        if (e == null || !e.data.containsKey(format)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return e;
+    }
+
+    /**
+     * Stores a reply unless a write happened since the version read before computing it.
+     */
+    synchronized void put(Key k, int format, Class<?> type, byte[] data, long since) {
+        if (version.get() != since) return;
+        Entry e = entries.get(k);
+        if (e == null || e.type != type || System.currentTimeMillis() > e.expires) {
+            e = new Entry(type, System.currentTimeMillis() + ttl);
+            entries.put(k, e);
+        }
+        e.data.put(format, data);
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    synchronized void invalidate(Key k) {
+        version.incrementAndGet();
+        entries.remove(k);
+    }
+
+    public synchronized void clear() {
+        version.incrementAndGet();
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long expirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "cache size=" + size() + " hits=" + hits() + " misses=" + misses()
+                + " evictions=" + evictions() + " expirations=" + expirations();
+    }
+
+    static final class Key {
+        final Class<?> type;
+        final Object key;
+
+        Key(Class<?> type, Object key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return type == k.type && key.equals(k.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + key.hashCode();
+        }
+    }
+
+    static final class Entry {
+        final Class<?> type;
+        final long expires;
+        final Map<Integer,byte[]> data = new ConcurrentHashMap<>(2);
+
+        Entry(Class<?> type, long expires) {
+            this.type = type;
+            this.expires = expires;
+        }
+
+        byte[] data(int format) {
+            return data.get(format);
+        }
+    }
+}
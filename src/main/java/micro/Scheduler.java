@@ -0,0 +1,59 @@
+package micro;
+
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Elastic worker pool. A task goes straight to an idle worker if one is parked on the queue,
+ * otherwise the pool grows up to its maximum, and only then the task waits in a backlog of
+ * bounded size. Beyond that {@link #execute} throws {@link RejectedExecutionException} so the
+ * caller can answer "overloaded". Workers above the minimum retire after the keep-alive.
+ */
+class Scheduler extends ThreadPoolExecutor {
+    final static String OVERLOADED = "overloaded";
+
+    Scheduler(String name, int min, int max, long keepAlive, int backlog) {
+        super(min, Math.max(min, max), keepAlive, TimeUnit.MILLISECONDS, new HandOff(backlog), factory(name),
+                (r, pool) -> {
+                    if (pool.isShutdown() || !((HandOff) pool.getQueue()).backlog(r))
+                        throw new RejectedExecutionException(OVERLOADED);
+                });
+    }
+
+    /**
+     * Tasks accepted and not started yet.
+     */
+    int backlog() {
+        return getQueue().size();
+    }
+
+    private static ThreadFactory factory(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> new Thread(r, name + "-" + n.incrementAndGet());
+    }
+
+    static class HandOff extends LinkedTransferQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        HandOff(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Only hands over to a parked worker, so the pool prefers a new thread to queueing.
+         */
+        @Override
+        public boolean offer(Runnable r) {
+            return tryTransfer(r);
+        }
+
+        synchronized boolean backlog(Runnable r) {
+            return size() < capacity && super.offer(r);
+        }
+    }
+}
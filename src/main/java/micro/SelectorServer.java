@@ -0,0 +1,450 @@
+package micro;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static micro.NetPoint.logger;
+
+/**
+ * Non-blocking server engine: one acceptor plus a few event loops, each owning a {@link Selector}.
+ * Requests are framed on the loop thread and only complete requests are handed to the workers.
+ * With several acceptors per address the TCP sockets are dealt out to the loops, and each loop
+ * accepts the connections the kernel gives its sockets; the acceptor keeps the Unix socket.
+ */
+class SelectorServer {
+    private final static int BUFFER_SIZE = 8*1024;
+    private final static int MAX_LINE = 16*1024*1024;
+    final static int MAX_PENDING = 64;
+
+    private final NetHost host;
+    private final List<InetSocketAddress> addresses;
+    private final Path unix;
+    private final ExecutorService workers;
+    private final EventLoop[] loops;
+    private final int acceptors;
+    private final List<ServerSocketChannel> channels = new ArrayList<>();
+    private Selector selector;
+    private volatile boolean stopped=false;
+    private int next=0;
+
+    SelectorServer(NetHost host, List<InetSocketAddress> addresses, Path unix, int nloops, ExecutorService workers, int acceptors) {
+        this.host=host;
+        this.addresses=addresses;
+        this.unix=unix;
+        this.workers=workers;
+        this.loops=new EventLoop[nloops];
+        this.acceptors=acceptors;
+    }
+
+    void start(ExecutorService executor) {
+        try {
+            selector = Selector.open();
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new EventLoop(Selector.open());
+            int shard = 0;
+            for (InetSocketAddress a : addresses) {
+                for (int k = 0; k < acceptors; k++) {
+                    try {
+                        ServerSocketChannel ch = host.listen(a);
+                        ch.configureBlocking(false);
+                        // loops are not running yet, so registering with their selectors does not block
+                        ch.register(acceptors > 1 ? loops[shard++ % loops.length].selector : selector, SelectionKey.OP_ACCEPT);
+                        channels.add(ch);
+                        logger.info(a.getAddress().getHostAddress() + ":" + a.getPort() + " started (nio)");
+                    } catch (IOException e) {
+                        logger.error(a.getAddress().getHostAddress() + ":" + a.getPort() + "-" + e.toString());
+                    }
+                }
+            }
+            if (unix != null) {
+                try {
+                    ServerSocketChannel ch = Unix.listen(unix);
+                    ch.configureBlocking(false);
+                    ch.register(selector, SelectionKey.OP_ACCEPT);
+                    channels.add(ch);
+                    logger.info("unix:" + unix + " started (nio)");
+                } catch (IOException e) {
+                    logger.error("unix:" + unix + "-" + e.toString());
+                }
+            }
+        } catch (IOException e) {
+            logger.error("selector - " + e.toString());
+            return;
+        }
+        for (EventLoop l : loops) executor.submit(l);
+        executor.submit(this::accept);
+    }
+
+    void disconnect() {
+        stopped=true;
+        for (ServerSocketChannel ch : channels) close(ch);
+        if (selector!=null) close(selector);
+        for (EventLoop l : loops)
+            if (l!=null) l.selector.wakeup();
+    }
+
+    private void accept() {
+        while (!stopped) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid() || !key.isAcceptable()) continue;
+                    SocketChannel ch = acceptOne(key);
+                    if (ch == null) continue;
+                    EventLoop loop = loops[next++ % loops.length];
+                    loop.execute(() -> loop.register(ch));
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("selector - " + e.toString());
+            }
+        }
+        logger.info("selector stopped");
+    }
+
+    private static SocketChannel acceptOne(SelectionKey key) throws IOException {
+        SocketChannel ch = ((ServerSocketChannel) key.channel()).accept();
+        if (ch == null) return null;
+        ch.configureBlocking(false);
+        if (!Unix.isUnix(ch.getLocalAddress())) ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return ch;
+    }
+
+    private static void close(java.io.Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            logger.error(e.toString());
+        }
+    }
+
+    class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            try {
+                Connection c = new Connection(ch, this);
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                host.currClients.incrementAndGet();
+            } catch (IOException e) {
+                logger.error("selector - " + e.toString());
+                close(ch);
+            }
+        }
+
+        /**
+         * Takes a connection from a listening socket of this loop and serves it here.
+         */
+        private void accepted(SelectionKey key) {
+            try {
+                if (!key.isValid() || !key.isAcceptable()) return;
+                SocketChannel ch = acceptOne(key);
+                if (ch != null) register(ch);
+            } catch (IOException e) {
+                if (!stopped) logger.error("selector - " + e.toString());
+            }
+        }
+
+        public void run() {
+            while (!stopped) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.channel() instanceof ServerSocketChannel) {
+                            accepted(key);
+                            continue;
+                        }
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) c.read();
+                            if (key.isValid() && key.isWritable()) c.write();
+                        } catch (IOException | CancelledKeyException e) {
+                            logger.error("worker " + c.peer + "-" + e.toString());
+                            c.close();
+                        } catch (RuntimeException e) {
+                            // a bug a peer runs into costs it its connection, not the loop with all the others
+                            logger.error("worker " + c.peer, e);
+                            c.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("selector - " + e.toString());
+                }
+            }
+            // replies handed over meanwhile still hold pooled buffers, closing gives them back
+            Runnable task;
+            while ((task = tasks.poll()) != null) task.run();
+            for (SelectionKey key : selector.keys())
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            close(selector);
+        }
+    }
+
+    class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final String peer;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        Protocol protocol;
+        NetPoint point;
+        boolean text=false;
+        String header;
+        final ArrayDeque<Callable<ByteBuffer[]>> requests = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        boolean busy=false;
+        boolean closed=false;
+        int inflight=0;
+
+        Connection(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            SocketAddress local = channel.getLocalAddress();
+            if (Unix.isUnix(local)) {
+                this.peer = "unix:" + local;
+            } else {
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                this.peer = remote.getAddress().getHostAddress() + ":" + ((InetSocketAddress) local).getPort();
+            }
+        }
+
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            if (protocol == null && !text && in.hasRemaining()) {
+                if (in.get(0) == Frame.MAGIC) {
+                    protocol = new Protocol();
+                    protocol.sink(buffers -> loop.execute(() -> enqueue(buffers)));
+                } else {
+                    text = true;
+                    point = host.point(null);
+                    if (point == null) {
+                        close();
+                        return;
+                    }
+                }
+            }
+            if (protocol != null)
+                readFrames();
+            else
+                readLines();
+            in.compact();
+            if (!in.hasRemaining()) {
+                // a binary connection holds any frame the blocking engine takes
+                int max = protocol != null ? Frame.HEADER_SIZE + Frame.MAX_PAYLOAD : MAX_LINE;
+                if (in.capacity() >= max) throw new IOException("request too long");
+                ByteBuffer b = ByteBuffer.allocate(Math.min(in.capacity() * 2, max));
+                in.flip();
+                b.put(in);
+                in = b;
+            }
+            if (requests.size() + inflight >= MAX_PENDING)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            dispatch();
+        }
+
+        void readLines() {
+            int start = in.position();
+            for (int i = start; i < in.limit(); i++) {
+                if (in.get(i) != '\n') continue;
+                int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+                String line = new String(in.array(), start, end - start);
+                start = i + 1;
+                if (header == null) {
+                    header = line;
+                } else {
+                    String h = header;
+                    host.queued.incrementAndGet();
+                    requests.add(() -> {
+                        byte[] reply = point.process(peer, h, line);
+                        return reply == null ? null : new ByteBuffer[]{ByteBuffer.wrap(reply)};
+                    });
+                    header = null;
+                }
+            }
+            in.position(start);
+        }
+
+        /**
+         * Control frames are handled right on the loop, requests run concurrently
+         * on the workers and answer in whatever order they finish.
+         */
+        void readFrames() throws IOException {
+            Frame f;
+            while ((f = Frame.parse(in)) != null) {
+                if (point == null && (point = host.bind(protocol, f)) == null) {
+                    f.release();
+                    loop.execute(this::close);
+                    in.position(in.limit());
+                    return;
+                }
+                if (f.isRequest()) {
+                    execute(f);
+                    continue;
+                }
+                try {
+                    point.process(peer, protocol, f);
+                } finally {
+                    f.release();
+                }
+            }
+        }
+
+        void execute(Frame request) {
+            inflight++;
+            host.queued.incrementAndGet();
+            try {
+                workers.execute(() -> {
+                    try {
+                        point.process(peer, protocol, request);
+                    } catch (Exception e) {
+                        logger.error("worker " + peer + "-" + e.toString());
+                        loop.execute(this::close);
+                    } finally {
+                        request.release();
+                        loop.execute(this::done);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                request.release();
+                inflight--;
+                host.queued.decrementAndGet();
+                point.metrics().rejected();
+                try {
+                    protocol.error(request.id, Scheduler.OVERLOADED);
+                } catch (IOException ex) {
+                    close();
+                }
+            }
+        }
+
+        void done() {
+            inflight--;
+            host.queued.decrementAndGet();
+            if (channel.isOpen() && inflight < MAX_PENDING)
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        void dispatch() {
+            if (busy || requests.isEmpty()) return;
+            Callable<ByteBuffer[]> request = requests.poll();
+            busy = true;
+            try {
+                workers.execute(() -> {
+                    ByteBuffer[] reply = null;
+                    boolean failed = false;
+                    try {
+                        reply = request.call();
+                    } catch (Exception e) {
+                        logger.error("worker " + peer + "-" + e.toString());
+                        failed = true;
+                    }
+                    ByteBuffer[] r = reply;
+                    boolean f = failed;
+                    loop.execute(() -> complete(r, f));
+                });
+            } catch (RejectedExecutionException e) {
+                host.queued.decrementAndGet();
+                close();
+            }
+        }
+
+        void complete(ByteBuffer[] reply, boolean failed) {
+            busy = false;
+            host.queued.decrementAndGet();
+            if (!channel.isOpen()) return;
+            if (failed) {
+                close();
+                return;
+            }
+            try {
+                if (reply != null) send(reply);
+                if (requests.size() < MAX_PENDING)
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                dispatch();
+            } catch (IOException e) {
+                logger.error("worker " + peer + "-" + e.toString());
+                close();
+            }
+        }
+
+        void send(ByteBuffer[] reply) throws IOException {
+            Collections.addAll(out, reply);
+            write();
+        }
+
+        void enqueue(ByteBuffer[] reply) {
+            if (!channel.isOpen()) {
+                BufferPool.release(reply);
+                return;
+            }
+            try {
+                send(reply);
+            } catch (IOException | CancelledKeyException e) {
+                logger.error("worker " + peer + "-" + e.toString());
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            if (!out.isEmpty()) channel.write(out.toArray(new ByteBuffer[0]));
+            while (!out.isEmpty() && !out.peek().hasRemaining()) BufferPool.release(out.poll());
+            if (out.isEmpty())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            if (key != null) key.cancel();
+            SelectorServer.close(channel);
+            if (closed) return;
+            closed = true;
+            if (protocol != null) protocol.cancelStreams();
+            for (ByteBuffer b : out) BufferPool.release(b);
+            out.clear();
+            // text requests still waiting for a worker are dropped
+            host.queued.addAndGet(-requests.size());
+            requests.clear();
+            if (key != null) host.currClients.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package micro;
+
+import java.io.IOException;
+
+/**
+ * The service received the request but failed to handle it; the connection stays usable.
+ */
+public class ServerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ServerException(String message) {
+        super(message);
+    }
+}
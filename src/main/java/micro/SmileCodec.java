@@ -0,0 +1,15 @@
+package micro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Binary JSON (Smile) codec: same object model as {@link JsonCodec}, smaller payloads and cheaper parsing.
+ */
+public class SmileCodec extends JsonCodec {
+    public final static SmileCodec SMILE = new SmileCodec();
+
+    public SmileCodec() {
+        super((byte) 1, "smile", new ObjectMapper(new SmileFactory()));
+    }
+}
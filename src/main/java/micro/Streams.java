@@ -0,0 +1,147 @@
+package micro;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.BaseStream;
+
+/**
+ * Consumer results that are sent as a stream of items: an Iterator, a java.util.stream.Stream,
+ * or a Flow.Publisher the consumer pushes items to. All of them are read as an Iterator that
+ * may hold resources, released by closing it.
+ */
+final class Streams {
+    final static long TIMEOUT = 30*1000;
+
+    private Streams() {
+    }
+
+    /**
+     * The items of a streaming result, or null for an ordinary one.
+     */
+    @SuppressWarnings("unchecked")
+    static Iterator<?> items(Object reply) {
+        if (reply instanceof Iterator) return (Iterator<?>) reply;
+        if (reply instanceof BaseStream) {
+            BaseStream<?,?> stream = (BaseStream<?,?>) reply;
+            return new Items<>(stream.iterator(), stream::close);
+        }
+        if (reply instanceof Flow.Publisher) {
+            Subscriber<Object> s = new Subscriber<>();
+            ((Flow.Publisher<Object>) reply).subscribe(s);
+            return s;
+        }
+        return null;
+    }
+
+    /**
+     * Collects the items, for clients that cannot take a stream.
+     */
+    static List<Object> collect(Iterator<?> items) {
+        List<Object> list = new ArrayList<>();
+        try {
+            while (items.hasNext()) list.add(items.next());
+        } finally {
+            close(items);
+        }
+        return list;
+    }
+
+    static void close(Iterator<?> items) {
+        if (items instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) items).close();
+            } catch (Exception e) {
+                NetPoint.logger.error("stream - " + e.toString());
+            }
+        }
+    }
+
+    static class Items<T> implements Iterator<T>, AutoCloseable {
+        private final Iterator<T> items;
+        private final Runnable onClose;
+
+        Items(Iterator<T> items, Runnable onClose) {
+            this.items = items;
+            this.onClose = onClose;
+        }
+
+        public boolean hasNext() {
+            return items.hasNext();
+        }
+
+        public T next() {
+            return items.next();
+        }
+
+        public void close() {
+            onClose.run();
+        }
+    }
+
+    /**
+     * Pulls from a publisher a window of items at a time, so a fast publisher waits for the client.
+     */
+    static class Subscriber<T> implements Flow.Subscriber<T>, Iterator<T>, AutoCloseable {
+        private final static Object END = new Object();
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+        private Object next;
+        private int taken;
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Protocol.WINDOW);
+        }
+
+        public void onNext(T item) {
+            queue.add(item);
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+            queue.add(END);
+        }
+
+        public void onComplete() {
+            queue.add(END);
+        }
+
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (next == null) throw new IllegalStateException("publisher stalled");
+                if (next != END && ++taken == Protocol.WINDOW / 2) {
+                    taken = 0;
+                    subscription.request(Protocol.WINDOW / 2);
+                }
+            }
+            if (next != END) return true;
+            if (error != null) throw new IllegalStateException(error.toString(), error);
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            T item = (T) next;
+            next = null;
+            return item;
+        }
+
+        public void close() {
+            Flow.Subscription s = subscription;
+            if (s != null && next != END) s.cancel();
+        }
+    }
+}
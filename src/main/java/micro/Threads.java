@@ -0,0 +1,76 @@
+package micro;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads where the JVM has them (JDK 21), looked up reflectively so the code still
+ * builds and runs on JDK 11. Callers check {@link #VIRTUAL} and keep their platform executors otherwise.
+ */
+final class Threads {
+    static final boolean VIRTUAL = factory("virtual-") != null;
+    private static final MethodHandle isVirtual = VIRTUAL ? isVirtual() : null;
+
+    private Threads() {
+    }
+
+    private static MethodHandle isVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static boolean isVirtual(Thread t) {
+        if (isVirtual == null) return false;
+        try {
+            return (boolean) isVirtual.invokeExact(t);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * A factory of virtual threads named prefix0, prefix1..., or null on JVMs without them.
+     */
+    static ThreadFactory factory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            builder = type.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) type.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An executor starting a new virtual thread per task, or null on JVMs without them.
+     */
+    static ExecutorService perTask(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        if (factory == null) return null;
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a daemon thread, virtual where available.
+     */
+    static Thread start(String name, Runnable task) {
+        ThreadFactory factory = VIRTUAL ? factory(name) : null;
+        Thread t = factory != null ? factory.newThread(task) : new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
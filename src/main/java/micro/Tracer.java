@@ -0,0 +1,139 @@
+package micro;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Flight recorder of requests: a sample of them, and every failed one, is kept in a fixed-size
+ * ring that overwrites the oldest events. Events hold sizes and timings, never payloads.
+ * Recording takes no lock; a request that is not sampled costs one random number.
+ */
+public class Tracer {
+    private final static Map<String,Tracer> clients = new ConcurrentHashMap<>();
+    private final static long DUMP_INTERVAL = 1000;
+
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong lastDump = new AtomicLong();
+    private volatile double sampling;
+    private volatile boolean dumpOnError;
+
+    /**
+     * 1024 events, one request in a hundred.
+     */
+    public Tracer() {
+        this(1024, 0.01);
+    }
+
+    public Tracer(int capacity, double sampling) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.sampling = sampling;
+    }
+
+    /**
+     * The tracer shared by all clients of the tag.
+     */
+    static Tracer client(String tag) {
+        return clients.computeIfAbsent(tag, t -> new Tracer());
+    }
+
+    /**
+     * Fraction of the successful requests recorded, 0 for failures only, 1 for all of them.
+     */
+    public Tracer sampling(double sampling) {
+        this.sampling = sampling;
+        return this;
+    }
+
+    /**
+     * Logs the recorded events when a request fails, at most once a second.
+     */
+    public Tracer dumpOnError(boolean dumpOnError) {
+        this.dumpOnError = dumpOnError;
+        return this;
+    }
+
+    public int capacity() {
+        return ring.length();
+    }
+
+    /**
+     * Records a request if it failed (error is not null) or is sampled.
+     */
+    void trace(String endpoint, NetPoint.COMMANDS command, String type, int sent, int received, long nanos, String error) {
+        if (error == null) {
+            double s = sampling;
+            if (s <= 0 || (s < 1 && ThreadLocalRandom.current().nextDouble() >= s)) return;
+        }
+        long seq = next.getAndIncrement();
+        ring.set((int) (seq & mask), new Event(seq, endpoint, command, type, sent, received, nanos, error));
+        if (error != null && dumpOnError) dumpToLog();
+    }
+
+    private void dumpToLog() {
+        long now = System.currentTimeMillis();
+        long last = lastDump.get();
+        if (now - last < DUMP_INTERVAL || !lastDump.compareAndSet(last, now)) return;
+        StringBuilder b = new StringBuilder("trace after error:");
+        for (Event e : dump()) b.append('\n').append(e);
+        NetPoint.logger.warn(b.toString());
+    }
+
+    /**
+     * The recorded events, oldest first.
+     */
+    public List<Event> dump() {
+        long end = next.get();
+        List<Event> events = new ArrayList<>();
+        for (long seq = Math.max(0, end - ring.length()); seq < end; seq++) {
+            Event e = ring.get((int) (seq & mask));
+            // skip slots already taken over by later events, or not written yet
+            if (e != null && e.seq == seq) events.add(e);
+        }
+        return events;
+    }
+
+    public void clear() {
+        for (int i = 0; i < ring.length(); i++) ring.set(i, null);
+    }
+
+    /**
+     * One traced request. Sizes are payload bytes, -1 where not known.
+     */
+    public static class Event {
+        public final long seq;
+        public final long time = System.currentTimeMillis();
+        public final String endpoint;
+        public final NetPoint.COMMANDS command;
+        public final String type;
+        public final int sent;
+        public final int received;
+        public final long nanos;
+        public final String error;
+
+        Event(long seq, String endpoint, NetPoint.COMMANDS command, String type, int sent, int received, long nanos, String error) {
+            this.seq = seq;
+            this.endpoint = endpoint;
+            this.command = command;
+            this.type = type;
+            this.sent = sent;
+            this.received = received;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return time + " " + endpoint + " " + command + " " + type + " sent=" + sent + " received=" + received
+                    + " " + nanos / 1000 + "us" + (error == null ? "" : " " + error);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package micro;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+/**
+ * Unix domain sockets for clients on the same machine as the service. They came with JDK 16, so
+ * they are looked up reflectively like {@link Threads}; on older JVMs {@link #SUPPORTED} is false
+ * and everything stays on TCP.
+ */
+final class Unix {
+    private final static Method addressOf = method("java.net.UnixDomainSocketAddress", "of", Path.class);
+    private final static Method openServer = method("java.nio.channels.ServerSocketChannel", "open", ProtocolFamily.class);
+    static final boolean SUPPORTED = addressOf != null && openServer != null && family() != null;
+    /**
+     * Identifies this machine in announcements, so a client only takes a socket path of its own host.
+     */
+    static final String HOST = host();
+
+    private Unix() {
+    }
+
+    private static Method method(String cls, String name, Class<?> arg) {
+        try {
+            return Class.forName(cls).getMethod(name, arg);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ProtocolFamily family() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The machine id of systemd or dbus, or else the host name; the same for all JVMs of the host.
+     */
+    private static String host() {
+        for (String file : new String[]{"/etc/machine-id", "/var/lib/dbus/machine-id"}) {
+            try {
+                String id = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.US_ASCII).trim();
+                if (!id.isEmpty()) return id;
+            } catch (IOException | RuntimeException e) {
+            }
+        }
+        try {
+            return InetAddress.getLocalHost().getHostName().replaceAll("[,:=;]", "_");
+        } catch (IOException e) {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    static SocketAddress address(Path path) throws IOException {
+        return (SocketAddress) invoke(addressOf, path);
+    }
+
+    /**
+     * Listens on the path, replacing the socket file a crashed server may have left behind.
+     */
+    static ServerSocketChannel listen(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        ServerSocketChannel ch = (ServerSocketChannel) invoke(openServer, family());
+        ch.bind(address(path));
+        return ch;
+    }
+
+    static SocketChannel connect(Path path) throws IOException {
+        return SocketChannel.open(address(path));
+    }
+
+    static boolean isUnix(SocketAddress address) {
+        return address != null && !(address instanceof InetSocketAddress);
+    }
+
+    private static Object invoke(Method m, Object arg) throws IOException {
+        if (!SUPPORTED) throw new IOException("unix domain sockets are not available");
+        try {
+            return m.invoke(null, arg);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -1,12 +1,34 @@
+import micro.Batch;
+import micro.BufferPool;
+import micro.DiscoveryRegistry;
+import micro.Handlers;
+import micro.JsonCodec;
 import micro.NetClient;
+import micro.NetClientPool;
+import micro.NetHost;
 import micro.NetPoint;
+import micro.ResponseCache;
+import micro.SmileCodec;
+import micro.Tracer;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.BlockJUnit4ClassRunner;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -149,4 +171,810 @@ public class ClientServerTest {
         }catch(InterruptedException e){}
     }
 
+    @Test
+    public void selectorEngineTest() {
+        String name="Joe";
+        String tag="A";
+        NetPoint np=NetPoint.start(tag, 10,(cmd,o)->{
+            if (o instanceof  TestObject) {
+                if (((TestObject)o).id==100 && cmd==NetPoint.COMMANDS.LOAD) {
+                    ((TestObject) o).name = name;
+                    return o;
+                }
+                return null;
+            }
+            return null;
+        }, new NetPoint.Options().engine(NetPoint.ENGINES.NIO).selectors(2));
+
+        NetClient client=new NetClient(tag,0).connectNext();
+        for(int i=0;i<100;i++) {
+            Object reply = client.load(new TestObject(100, "?"));
+            assertNotNull(reply);
+            assertEquals(((TestObject) reply).name, name);
+        }
+        client.disconnect();
+
+        ExecutorService service = Executors.newFixedThreadPool(50);
+        List<Future<TestObject>> replies=new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            replies.add(service.submit(() -> new NetClient<TestObject>(tag, 0)
+                    .connectNext()
+                    .loadAndClose(new TestObject(100, ""))));
+        }
+        try {
+            for (Future<TestObject> f:replies) {
+                TestObject reply = f.get(30, TimeUnit.SECONDS);
+                assertNotNull(reply);
+                assertEquals(reply.name, name);
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            fail(e.toString());
+        } finally {
+            service.shutdownNow();
+            np.stop();
+        }
+        try {
+            Thread.sleep(1000);
+        }catch(InterruptedException e){}
+    }
+
+    static InetSocketAddress discover(String tag) throws IOException {
+        try (MulticastSocket socket = new MulticastSocket(NetPoint.MULTICAST_PORT)) {
+            socket.joinGroup(InetAddress.getByName(NetPoint.MULTICAST_ADDRESS));
+            while (true) {
+                DatagramPacket pckt = new DatagramPacket(new byte[1024], 1024);
+                socket.receive(pckt);
+                String[] tags = new String(pckt.getData(), 0, pckt.getLength()).split(",");
+                if (tags.length < 3 || !tags[0].equals("mnc") || !tags[1].equals(tag)) continue;
+                String[] hostPort = tags[2].split(":");
+                return new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+            }
+        }
+    }
+
+    @Test
+    public void textProtocolCompatibilityTest() throws IOException {
+        String tag="A";
+        for (NetPoint.ENGINES engine : NetPoint.ENGINES.values()) {
+            NetPoint np = NetPoint.start(tag, 2, (cmd, o) -> {
+                ((TestObject) o).name = "Joe";
+                return o;
+            }, new NetPoint.Options().engine(engine));
+            try (Socket socket = new Socket()) {
+                socket.connect(discover(tag));
+                BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                OutputStream output = socket.getOutputStream();
+                for (int i = 0; i < 10; i++) {
+                    output.write(("LOAD," + TestObject.class.getName() + "\n{\"id\":" + i + ",\"name\":\"?\"}\n").getBytes());
+                    assertEquals(TestObject.class.getName(), input.readLine());
+                    assertEquals("{\"id\":" + i + ",\"name\":\"Joe\"}", input.readLine());
+                }
+            } finally {
+                np.stop();
+            }
+        }
+    }
+
+    @Test
+    public void smileCodecTest() {
+        String tag="A";
+        NetPoint np=NetPoint.start(tag, 2,(cmd,o)->{
+            ((TestObject) o).name = "Joe\nDoe";
+            return o;
+        });
+        try {
+            NetClient<TestObject> client = new NetClient<TestObject>(tag, 0, SmileCodec.SMILE).connectNext();
+            for (int i = 0; i < 10; i++) {
+                TestObject reply = client.load(new TestObject(i, "?"));
+                assertNotNull(reply);
+                assertEquals(i, reply.id);
+                assertEquals("Joe\nDoe", reply.name);
+            }
+            client.disconnect();
+        } finally {
+            np.stop();
+        }
+    }
+
+    @Test
+    public void pipelinedAsyncTest() throws Exception {
+        String tag="A";
+        NetPoint np=NetPoint.start(tag, 8,(cmd,o)->{
+            TestObject t=(TestObject) o;
+            if (t.id==0) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {}
+            }
+            t.name = cmd.name() + t.id;
+            return t;
+        }, new NetPoint.Options().engine(NetPoint.ENGINES.NIO));
+        NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).connectNext();
+        try {
+            List<CompletableFuture<TestObject>> replies = new ArrayList<>();
+            for (int i = 0; i < 100; i++)
+                replies.add(i % 2 == 0 ? client.loadAsync(new TestObject(i, "?")) : client.saveAsync(new TestObject(i, "?")));
+            replies.get(1).get(10, TimeUnit.SECONDS);
+            assertFalse(replies.get(0).isDone());
+            for (int i = 0; i < 100; i++) {
+                TestObject reply = replies.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(i, reply.id);
+                assertEquals((i % 2 == 0 ? "LOAD" : "SAVE") + i, reply.name);
+            }
+            assertEquals("DELETE7", client.delete(new TestObject(7, "?")).name);
+            // once the server is gone requests fail, rather than wait for a reader that has ended
+            np.stop();
+            try {
+                client.loadAsync(new TestObject(1, "?")).get(5, TimeUnit.SECONDS);
+                fail("reply from a stopped server");
+            } catch (ExecutionException e) {
+            }
+        } finally {
+            client.disconnect();
+            np.stop();
+        }
+    }
+
+    @Test
+    public void clientPoolTest() throws Exception {
+        String tag="A";
+        NetPoint np=NetPoint.start(tag, 20,(cmd,o)->{
+            ((TestObject) o).name = "Joe";
+            return o;
+        }, new NetPoint.Options().engine(NetPoint.ENGINES.NIO));
+        NetClientPool<TestObject> pool = new NetClientPool<>(tag, 0, micro.JsonCodec.JSON, 4, 60000);
+        ExecutorService service = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<TestObject>> replies = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                int id = i;
+                replies.add(service.submit(() -> pool.load(new TestObject(id, "?"))));
+            }
+            for (int i = 0; i < 200; i++) {
+                TestObject reply = replies.get(i).get(30, TimeUnit.SECONDS);
+                assertNotNull(reply);
+                assertEquals(i, reply.getId());
+                assertEquals("Joe", reply.getName());
+            }
+            assertTrue(pool.idle() > 0);
+            assertTrue(pool.idle() <= 8);
+        } finally {
+            service.shutdownNow();
+            pool.close();
+            np.stop();
+        }
+        assertEquals(0, pool.idle());
+    }
+
+    @Test
+    public void discoveryRegistryTest() throws Exception {
+        String tag="R";
+        long start=System.currentTimeMillis();
+        NetClient<TestObject> client=new NetClient<TestObject>(tag);
+        assertTrue(System.currentTimeMillis()-start < 1000);
+        CountDownLatch discovered=new CountDownLatch(1);
+        DiscoveryRegistry.get().subscribe(tag, endpoints -> discovered.countDown());
+        NetPoint np=NetPoint.start(tag, 1,(cmd,o)->o);
+        try {
+            assertTrue(discovered.await(10, TimeUnit.SECONDS));
+            assertFalse(DiscoveryRegistry.get().endpoints(tag).isEmpty());
+            assertEquals(7, client.connectNext().load(new TestObject(7, "?")).getId());
+        } finally {
+            client.disconnect();
+            np.stop();
+        }
+    }
+
+    @Test
+    public void loadAwareBalancingTest() throws Exception {
+        String tag="L";
+        NetPoint np=NetPoint.start(tag, 20,(cmd,o)->o, new NetPoint.Options().engine(NetPoint.ENGINES.NIO));
+        try {
+            Set<String> endpoints=DiscoveryRegistry.get().await(tag, 10000);
+            assertFalse(endpoints.isEmpty());
+            assertEquals(20, DiscoveryRegistry.get().load(endpoints.iterator().next()).maxClients);
+            for (NetClient.BALANCING b : NetClient.BALANCING.values()) {
+                NetClient<TestObject> client=new NetClient<TestObject>(tag).balancing(b).connectNext();
+                try {
+                    assertEquals(3, client.load(new TestObject(3, "?")).getId());
+                    assertEquals(1, np.load().active);
+                } finally {
+                    client.disconnect();
+                }
+                for (int i = 0; i < 50 && np.load().active > 0; i++) Thread.sleep(10);
+            }
+            assertEquals(0, np.load().queued);
+        } finally {
+            np.stop();
+        }
+    }
+
+    @Test
+    public void responseCacheTest() throws Exception {
+        String tag="C";
+        AtomicInteger calls=new AtomicInteger();
+        ResponseCache cache=new ResponseCache(100, 60000, o -> ((TestObject) o).getId());
+        NetPoint np=NetPoint.start(tag, 4,(cmd,o)->{
+            calls.incrementAndGet();
+            ((TestObject) o).name = cmd + "" + calls.get();
+            return o;
+        }, new NetPoint.Options().engine(NetPoint.ENGINES.NIO).cache(cache));
+        NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).connectNext();
+        try {
+            assertEquals("LOAD1", client.load(new TestObject(1, "?")).name);
+            assertEquals("LOAD1", client.load(new TestObject(1, "?")).name);
+            assertEquals("LOAD1", client.load(new TestObject(1, "?")).name);
+            assertEquals(1, calls.get());
+            assertEquals(2, cache.hits());
+            assertEquals("SAVE2", client.save(new TestObject(1, "!")).name);
+            assertEquals("LOAD3", client.load(new TestObject(1, "?")).name);
+            assertEquals("LOAD4", client.load(new TestObject(2, "?")).name);
+            assertEquals(2, cache.size());
+            // batches share the entries of single requests
+            assertEquals("LOAD4", client.loadAll(List.of(new TestObject(2, "?"))).get(0).name);
+            assertEquals(4, calls.get());
+            client.saveAll(List.of(new TestObject(2, "!")));
+            assertEquals("LOAD6", client.load(new TestObject(2, "?")).name);
+        } finally {
+            client.disconnect();
+            np.stop();
+        }
+    }
+
+    @Test
+    public void overloadedTest() throws Exception {
+        String tag="O";
+        NetPoint np=NetPoint.start(tag, 1,(cmd,o)->o, new NetPoint.Options().workers(1, 1).backlog(0));
+        try (Socket busy = new Socket(); Socket rejected = new Socket()) {
+            InetSocketAddress addr = discover(tag);
+            busy.connect(addr);
+            busy.getOutputStream().write(("LOAD," + TestObject.class.getName() + "\n{\"id\":1,\"name\":\"?\"}\n").getBytes());
+            assertEquals(TestObject.class.getName(), new BufferedReader(new InputStreamReader(busy.getInputStream())).readLine());
+            rejected.connect(addr);
+            rejected.setSoTimeout(5000);
+            rejected.getOutputStream().write(new byte[]{(byte) 0xB5, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            DataInputStream in = new DataInputStream(rejected.getInputStream());
+            byte[] header = new byte[16];
+            in.readFully(header);
+            assertEquals(4, header[2]);
+            byte[] msg = new byte[header[15]];
+            in.readFully(msg);
+            assertEquals("overloaded", new String(msg));
+        } finally {
+            np.stop();
+        }
+    }
+
+    @Test
+    public void virtualEngineTest() throws Exception {
+        String tag="V";
+        NetPoint np=NetPoint.start(tag, 2,(cmd,o)->{
+            ((TestObject) o).name = Thread.currentThread().getName();
+            return o;
+        }, new NetPoint.Options().engine(NetPoint.ENGINES.VIRTUAL));
+        ExecutorService service = Executors.newFixedThreadPool(20);
+        try {
+            List<Future<TestObject>> replies = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                int id = i;
+                replies.add(service.submit(() -> new NetClient<TestObject>(tag, 0)
+                        .connectNext().loadAndClose(new TestObject(id, "?"))));
+            }
+            for (int i = 0; i < 20; i++) {
+                TestObject reply = replies.get(i).get(30, TimeUnit.SECONDS);
+                assertEquals(i, reply.getId());
+                assertTrue(reply.getName().startsWith("worker-"));
+            }
+        } finally {
+            service.shutdownNow();
+            np.stop();
+        }
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        String tag="M";
+        NetPoint np=NetPoint.start(tag, 4,(cmd,o)->o, new NetPoint.Options().engine(NetPoint.ENGINES.NIO));
+        NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).connectNext();
+        try {
+            for (int i = 0; i < 5; i++) client.load(new TestObject(i, "?"));
+            client.save(new TestObject(1, "?"));
+            client.saveAsync(new TestObject(2, "?")).get(10, TimeUnit.SECONDS);
+            assertEquals(5, np.metrics().command(NetPoint.COMMANDS.LOAD).getCount());
+            assertEquals(2, np.metrics().command(NetPoint.COMMANDS.SAVE).getCount());
+            assertTrue(np.metrics().command(NetPoint.COMMANDS.LOAD).getP99Micros() > 0);
+            assertEquals(7, client.metrics().getRequests());
+            assertEquals(0, client.metrics().getErrors());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("micro:type=NetPoint,tag=" + ObjectName.quote(tag) + ",name=summary");
+            assertEquals(7L, server.getAttribute(name, "Requests"));
+            assertEquals(1, server.getAttribute(name, "Connections"));
+        } finally {
+            client.disconnect();
+            np.stop();
+        }
+    }
+
+    @Test
+    public void tracerTest() throws Exception {
+        String tag="T";
+        Tracer tracer=new Tracer(4, 1);
+        NetPoint np=NetPoint.start(tag, 4,(cmd,o)->{
+            if (cmd==NetPoint.COMMANDS.DELETE) throw new IllegalStateException("no delete");
+            return o;
+        }, new NetPoint.Options().tracer(tracer));
+        NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).connectNext();
+        try {
+            for (int i = 0; i < 6; i++) client.load(new TestObject(i, "?"));
+            List<Tracer.Event> events=tracer.dump();
+            assertEquals(4, events.size());
+            assertEquals(NetPoint.COMMANDS.LOAD, events.get(3).command);
+            assertEquals(TestObject.class.getName(), events.get(3).type);
+            assertTrue(events.get(3).received > 0 && events.get(3).sent > 0);
+            assertTrue(events.get(0).seq < events.get(3).seq);
+            tracer.sampling(0).clear();
+            client.load(new TestObject(7, "?"));
+            assertNull(client.delete(new TestObject(8, "?")));
+            events=tracer.dump();
+            assertEquals(1, events.size());
+            assertTrue(events.get(0).error.contains("no delete"));
+            assertTrue(client.tracer().dump().stream().anyMatch(e -> e.error!=null && e.command==NetPoint.COMMANDS.DELETE));
+        } finally {
+            client.disconnect();
+            np.stop();
+        }
+    }
+
+    @Test
+    public void compressionTest() throws Exception {
+        String tag="Z";
+        NetPoint np=NetPoint.start(tag, 4,(cmd,o)->o,
+                new NetPoint.Options().compression(NetPoint.COMPRESSION.LZ4, 1024));
+        StringBuilder b=new StringBuilder();
+        for (int i = 0; i < 5000; i++) b.append("point ").append(i % 10).append(';');
+        String name=b.toString();
+        try {
+            for (NetPoint.COMPRESSION c : NetPoint.COMPRESSION.values()) {
+                NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).compression(c, 1024).connectNext();
+                long saved=client.metrics().getBytesSavedByCompression();
+                try {
+                    assertEquals(name, client.load(new TestObject(1, name)).getName());
+                    assertEquals("small", client.load(new TestObject(2, "small")).getName());
+                    if (c == NetPoint.COMPRESSION.NONE)
+                        assertEquals(saved, client.metrics().getBytesSavedByCompression());
+                    else
+                        assertTrue(client.metrics().getBytesSavedByCompression() > saved + name.length() / 2);
+                } finally {
+                    client.disconnect();
+                }
+            }
+            assertEquals(2, np.metrics().getCompressedPayloads());
+            assertTrue(np.metrics().getCompressionRatio() < 0.5);
+            assertTrue(np.metrics().getDecompressMillis() > 0);
+        } finally {
+            np.stop();
+        }
+    }
+
+    @Test
+    public void streamingTest() throws Exception {
+        String tag="S";
+        for (NetPoint.ENGINES engine : new NetPoint.ENGINES[]{NetPoint.ENGINES.BLOCKING, NetPoint.ENGINES.NIO}) {
+            NetPoint np=NetPoint.start(tag, 4,(cmd,o)->{
+                TestObject q=(TestObject) o;
+                if ("range".equals(q.getName()))
+                    return java.util.stream.IntStream.range(0, q.getId()).mapToObj(i -> new TestObject(i, "item"));
+                if ("pushed".equals(q.getName())) {
+                    SubmissionPublisher<TestObject> publisher=new SubmissionPublisher<>();
+                    CompletableFuture.runAsync(() -> {
+                        while (publisher.getNumberOfSubscribers()==0) Thread.yield();
+                        for (int i = 0; i < q.getId(); i++) publisher.submit(new TestObject(i, "pushed"));
+                        publisher.close();
+                    });
+                    return publisher;
+                }
+                return o;
+            }, new NetPoint.Options().engine(engine));
+            NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).connectNext();
+            try {
+                int n=0;
+                try (micro.ReplyStream<TestObject> items=client.loadStream(new TestObject(1000, "range"))) {
+                    while (items.hasNext()) assertEquals(n++, items.next().getId());
+                }
+                assertEquals(1000, n);
+                try (micro.ReplyStream<TestObject> items=client.loadStream(new TestObject(100000, "range"))) {
+                    for (int i = 0; i < 5; i++) assertEquals(i, items.next().getId());
+                }
+                assertEquals("single", client.load(new TestObject(1, "single")).getName());
+                micro.ReplyStream<TestObject> single=client.loadStream(new TestObject(2, "single"));
+                assertEquals(2, single.next().getId());
+                assertFalse(single.hasNext());
+
+                List<Integer> pushed=new CopyOnWriteArrayList<>();
+                CompletableFuture<Void> completed=new CompletableFuture<>();
+                client.<TestObject>loadPublisher(new TestObject(100, "pushed")).subscribe(new Flow.Subscriber<TestObject>() {
+                    Flow.Subscription subscription;
+                    public void onSubscribe(Flow.Subscription s) {
+                        subscription=s;
+                        s.request(1);
+                    }
+                    public void onNext(TestObject item) {
+                        pushed.add(item.getId());
+                        subscription.request(1);
+                    }
+                    public void onError(Throwable e) {
+                        completed.completeExceptionally(e);
+                    }
+                    public void onComplete() {
+                        completed.complete(null);
+                    }
+                });
+                completed.get(30, TimeUnit.SECONDS);
+                assertEquals(100, pushed.size());
+                assertEquals(99, (int) pushed.get(99));
+            } finally {
+                client.disconnect();
+                np.stop();
+            }
+        }
+    }
+
+    @Test
+    public void multiTenantTest() throws Exception {
+        NetHost host=NetHost.start(8, new NetPoint.Options().engine(NetPoint.ENGINES.NIO));
+        NetPoint a=host.register("HA", (cmd,o)->{ ((TestObject) o).setName("A"); return o; });
+        NetPoint b=host.register("HB", (cmd,o)->{ ((TestObject) o).setName("B"); return o; });
+        NetClient<TestObject> ca = new NetClient<TestObject>("HA", 0).connectNext();
+        NetClient<TestObject> cb = new NetClient<TestObject>("HB", 0).connectNext();
+        try {
+            assertEquals("A", ca.load(new TestObject(1, "?")).getName());
+            assertEquals("B", cb.load(new TestObject(2, "?")).getName());
+            assertEquals(DiscoveryRegistry.get().endpoints("HA"), DiscoveryRegistry.get().endpoints("HB"));
+            assertEquals(1, a.metrics().command(NetPoint.COMMANDS.LOAD).getCount());
+            assertEquals(1, b.metrics().command(NetPoint.COMMANDS.LOAD).getCount());
+            assertEquals(2, a.load().active);
+            assertSame(a, host.register("HA", (cmd,o)->o));
+        } finally {
+            ca.disconnect();
+            cb.disconnect();
+            host.stop();
+        }
+        NetPoint c=NetPoint.start("HC", 4, (cmd,o)->o);
+        NetPoint d=NetPoint.start("HD", 4, (cmd,o)->o);
+        try {
+            assertNotSame(c, d);
+            assertSame(c.host(), d.host());
+            assertEquals(2, c.host().tags().size());
+        } finally {
+            c.stop();
+            d.stop();
+        }
+    }
+
+    @Test
+    public void hedgingTest() throws Exception {
+        String tag="HG";
+        AtomicBoolean[] slow={new AtomicBoolean(), new AtomicBoolean()};
+        NetHost[] hosts=new NetHost[2];
+        NetPoint[] points=new NetPoint[2];
+        for (int i = 0; i < 2; i++) {
+            AtomicBoolean s=slow[i];
+            hosts[i]=NetHost.start(8, new NetPoint.Options().engine(NetPoint.ENGINES.NIO));
+            points[i]=hosts[i].register(tag, (cmd,o)->{
+                try {
+                    if (s.get()) Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                }
+                return o;
+            });
+        }
+        while (DiscoveryRegistry.get().await(tag, 10000).stream().map(e -> e.substring(e.indexOf(':'))).distinct().count() < 2)
+            Thread.sleep(50);
+        NetClient<TestObject> client=new NetClient<TestObject>(tag).hedging(0.9, 0.1).connectNext();
+        try {
+            for (int i = 0; i < 40; i++) assertEquals(i, client.load(new TestObject(i, "?")).getId());
+            // a warm-up load slower than the percentile may have been hedged already
+            int primary=points[0].metrics().command(NetPoint.COMMANDS.LOAD).getCount()
+                    > points[1].metrics().command(NetPoint.COMMANDS.LOAD).getCount() ? 0 : 1;
+            slow[primary].set(true);
+            long won=client.metrics().getHedgesWon();
+            long start=System.nanoTime();
+            assertEquals(41, client.load(new TestObject(41, "?")).getId());
+            assertTrue(System.nanoTime() - start < 500_000_000L);
+            assertEquals(won+1, client.metrics().getHedgesWon());
+            long missed=client.metrics().getDeadlinesMissed();
+            client.deadline(200);
+            slow[1-primary].set(true);
+            assertNull(client.load(new TestObject(42, "?")));
+            assertTrue(client.metrics().getDeadlinesMissed() > missed);
+        } finally {
+            client.disconnect();
+            hosts[0].stop();
+            hosts[1].stop();
+        }
+    }
+
+    @Test
+    public void affinityTest() throws Exception {
+        String tag="K";
+        NetHost[] hosts=new NetHost[2];
+        for (int i = 0; i < 2; i++) {
+            String name=String.valueOf(i);
+            hosts[i]=NetHost.start(8, new NetPoint.Options().engine(NetPoint.ENGINES.NIO));
+            hosts[i].register(tag, (cmd,o)->{ ((TestObject) o).setName(name); return o; });
+        }
+        while (DiscoveryRegistry.get().await(tag, 10000).stream().map(e -> e.substring(e.indexOf(':'))).distinct().count() < 2)
+            Thread.sleep(50);
+        NetClientPool<TestObject> pool = new NetClientPool<TestObject>(tag, 0, micro.JsonCodec.JSON, 4, 60000)
+                .affinity(TestObject::getId);
+        try {
+            Set<String> served=new HashSet<>();
+            for (int i = 0; i < 30; i++) {
+                String first=pool.load(new TestObject(i, "?")).getName();
+                for (int j = 0; j < 3; j++) assertEquals(first, pool.load(new TestObject(i, "?")).getName());
+                served.add(first);
+            }
+            assertEquals(2, served.size());
+        } finally {
+            pool.close();
+            hosts[0].stop();
+            hosts[1].stop();
+        }
+    }
+
+    @Test
+    public void typedHandlersTest() throws Exception {
+        String tag="TH";
+        NetPoint np=NetPoint.start(tag, 4, new Handlers().on(TestObject.class, NetPoint.COMMANDS.LOAD, o -> {
+            o.setName("typed");
+            return o;
+        }), new NetPoint.Options().engine(NetPoint.ENGINES.NIO));
+        NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).connectNext();
+        NetClient<ArrayList<String>> other = new NetClient<ArrayList<String>>(tag, 0).connectNext();
+        try {
+            assertEquals("typed", client.load(new TestObject(1, "?")).getName());
+            assertNull(client.save(new TestObject(2, "?")));
+            assertNull(other.load(new ArrayList<>(List.of("x"))));
+            assertEquals("typed", client.load(new TestObject(3, "?")).getName());
+            assertEquals(2, np.metrics().getErrors());
+            // batch items are refused by type and command just the same
+            Batch<TestObject> saved=client.saveAll(List.of(new TestObject(4, "?"), new TestObject(5, "?")));
+            assertTrue(saved.error(0).contains("no SAVE handler") && saved.error(1).contains("no SAVE handler"));
+            assertEquals("typed", client.loadAll(List.of(new TestObject(6, "?"))).get(0).getName());
+        } finally {
+            client.disconnect();
+            other.disconnect();
+            np.stop();
+        }
+    }
+
+    @Test
+    public void unixSocketTest() throws Exception {
+        for (NetPoint.ENGINES engine : new NetPoint.ENGINES[]{NetPoint.ENGINES.BLOCKING, NetPoint.ENGINES.NIO}) {
+            String tag="U"+engine;
+            Tracer tracer=new Tracer(4, 1);
+            NetHost host=NetHost.start(4, new NetPoint.Options().engine(engine));
+            host.register(tag, (cmd,o)->o, new NetPoint.Options().tracer(tracer));
+            NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).connectNext();
+            try {
+                assertEquals(1, client.load(new TestObject(1, "?")).getId());
+                assertTrue(tracer.dump().get(0).endpoint.startsWith("unix:"));
+            } finally {
+                client.disconnect();
+                host.stop();
+            }
+        }
+    }
+
+    @Test
+    public void bufferPoolTest() throws Exception {
+        StringBuilder large=new StringBuilder();
+        for (int i=0; i<5000; i++) large.append('x');
+        for (NetPoint.ENGINES engine : new NetPoint.ENGINES[]{NetPoint.ENGINES.BLOCKING, NetPoint.ENGINES.NIO}) {
+            String tag="BP"+engine;
+            long before=BufferPool.outstanding();
+            NetPoint np=NetPoint.start(tag, 4, (cmd,o)->o, new NetPoint.Options().engine(engine));
+            NetClient<TestObject> client = new NetClient<TestObject>(tag, 0).connectNext();
+            try {
+                for (int i=0; i<100; i++) assertEquals(i, client.load(new TestObject(i, "?")).getId());
+                long allocated=BufferPool.allocated();
+                for (int i=0; i<1000; i++) {
+                    String name=i%10==0 ? large.toString() : "?";
+                    assertEquals(name, client.load(new TestObject(i, name)).getName());
+                }
+                // the pool covers the load after warming up, a few buffers may still change hands
+                assertTrue(BufferPool.allocated()-allocated < 64);
+            } finally {
+                client.disconnect();
+                np.stop();
+            }
+            long deadline=System.currentTimeMillis()+5000;
+            while (BufferPool.outstanding()>before && System.currentTimeMillis()<deadline) Thread.sleep(50);
+            assertTrue(BufferPool.leaks().toString(), BufferPool.outstanding()<=before);
+        }
+    }
+
+    @Test
+    public void expiredRequestsTest() throws Exception {
+        String tag="EX";
+        AtomicInteger calls=new AtomicInteger();
+        List<Long> budgets=new CopyOnWriteArrayList<>();
+        NetPoint np=NetPoint.start(tag, 4, (cmd,o)->{
+            calls.incrementAndGet();
+            budgets.add(NetPoint.remainingBudget());
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+            }
+            return o;
+        }, new NetPoint.Options().engine(NetPoint.ENGINES.NIO).workers(1, 1));
+        NetClient<TestObject> client=new NetClient<TestObject>(tag, 0).deadline(100).connectNext();
+        try {
+            List<CompletableFuture> replies=new ArrayList<>();
+            for (int i=0; i<5; i++) replies.add(client.sendAsync(NetPoint.COMMANDS.LOAD, new TestObject(i, "?")));
+            for (CompletableFuture r : replies) {
+                try {
+                    r.get();
+                    fail("reply after the deadline");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof TimeoutException);
+                }
+            }
+            long deadline=System.currentTimeMillis()+5000;
+            while (np.metrics().getExpired()<5 && System.currentTimeMillis()<deadline) Thread.sleep(50);
+            // the first request ran too long to be answered, the others were never started
+            assertEquals(5, np.metrics().getExpired());
+            assertEquals(1, calls.get());
+            assertTrue(budgets.get(0)>0 && budgets.get(0)<=100);
+            assertEquals(Long.MAX_VALUE, NetPoint.remainingBudget());
+        } finally {
+            client.disconnect();
+            np.stop();
+        }
+    }
+
+    @Test
+    public void probeDiscoveryTest() throws Exception {
+        String tag="PR";
+        NetPoint np=NetPoint.start(tag, 4, (cmd,o)->o);
+        try (DatagramSocket socket=new DatagramSocket()) {
+            assertFalse(DiscoveryRegistry.get().await(tag, 10000).isEmpty());
+            socket.setSoTimeout(2000);
+            byte[] probe=("mnp,"+tag).getBytes();
+            long start=System.currentTimeMillis();
+            socket.send(new DatagramPacket(probe, probe.length, InetAddress.getByName(NetPoint.MULTICAST_ADDRESS), NetPoint.MULTICAST_PORT));
+            DatagramPacket answer=new DatagramPacket(new byte[1024], 1024);
+            socket.receive(answer);
+            assertTrue(new String(answer.getData(), 0, answer.getLength()).startsWith("mnc,"+tag+","));
+            assertTrue(System.currentTimeMillis()-start < 1000);
+        } finally {
+            np.stop();
+        }
+        // the goodbye removes the endpoints long before they would expire
+        long deadline=System.currentTimeMillis()+2000;
+        while (!DiscoveryRegistry.get().endpoints(tag).isEmpty() && System.currentTimeMillis()<deadline) Thread.sleep(20);
+        assertTrue(DiscoveryRegistry.get().endpoints(tag).isEmpty());
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+        BiFunction<NetPoint.COMMANDS,Object,Object> echo=(cmd,o)->{
+            if (((TestObject) o).getId()==3) throw new IllegalArgumentException("no 3");
+            return o;
+        };
+        AtomicInteger batches=new AtomicInteger();
+        NetPoint.BatchConsumer all=new NetPoint.BatchConsumer() {
+            public List<?> applyAll(NetPoint.COMMANDS cmd, List<Object> items) {
+                batches.incrementAndGet();
+                List<Object> replies=new ArrayList<>();
+                for (Object o : items) replies.add(((TestObject) o).getId()==3 ? new IllegalArgumentException("no 3") : o);
+                return replies;
+            }
+
+            public Object apply(NetPoint.COMMANDS cmd, Object o) {
+                return echo.apply(cmd, o);
+            }
+        };
+        Object[][] setups={
+                {NetPoint.ENGINES.BLOCKING, echo, false},
+                {NetPoint.ENGINES.NIO, echo, true},
+                {NetPoint.ENGINES.NIO, all, false}};
+        for (Object[] setup : setups) {
+            String tag="BA"+setup[0]+setup[2]+(setup[1]==all);
+            NetPoint np=NetPoint.start(tag, 4, (BiFunction<NetPoint.COMMANDS,Object,Object>) setup[1],
+                    new NetPoint.Options().engine((NetPoint.ENGINES) setup[0]).parallelBatches((Boolean) setup[2]));
+            NetClient<TestObject> client=new NetClient<TestObject>(tag, 0).connectNext();
+            try {
+                List<TestObject> items=new ArrayList<>();
+                for (int i=0; i<100; i++) items.add(new TestObject(i, "n"+i));
+                Batch<TestObject> loaded=client.loadAll(items);
+                assertEquals(100, loaded.size());
+                assertTrue(loaded.failed());
+                for (int i=0; i<100; i++) {
+                    if (i==3) {
+                        assertNull(loaded.get(i));
+                        assertTrue(loaded.error(i).contains("no 3"));
+                    } else {
+                        assertNull(loaded.error(i));
+                        assertEquals("n"+i, loaded.get(i).getName());
+                    }
+                }
+                Batch<TestObject> saved=client.saveAll(Arrays.asList(new TestObject(7, "x"), null));
+                assertFalse(saved.failed());
+                assertEquals(7, saved.get(0).getId());
+                assertNull(saved.get(1));
+                // one request each, the failed item counts as an error of the LOAD
+                assertEquals(2, np.metrics().getRequests());
+                assertEquals(1, np.metrics().getErrors());
+            } finally {
+                client.disconnect();
+                np.stop();
+            }
+        }
+        assertEquals(2, batches.get());
+    }
+
+    @Test
+    public void acceptorsTest() throws Exception {
+        for (NetPoint.ENGINES engine : new NetPoint.ENGINES[]{NetPoint.ENGINES.BLOCKING, NetPoint.ENGINES.NIO}) {
+            String tag="AC"+engine;
+            NetPoint np=NetPoint.start(tag, 64, (cmd,o)->o, new NetPoint.Options().engine(engine)
+                    .acceptors(4).acceptBacklog(512).unixSocket(false));
+            try {
+                // connections come in at once on all the sockets that share the port
+                List<Callable<Integer>> storm=new ArrayList<>();
+                for (int i=0; i<32; i++) {
+                    int id=i;
+                    storm.add(()->{
+                        NetClient<TestObject> client=new NetClient<TestObject>(tag, 0).connectNext();
+                        try {
+                            return client.load(new TestObject(id, "?")).getId();
+                        } finally {
+                            client.disconnect();
+                        }
+                    });
+                }
+                ExecutorService pool=Executors.newFixedThreadPool(32);
+                try {
+                    List<Future<Integer>> ids=pool.invokeAll(storm);
+                    for (int i=0; i<32; i++) assertEquals(i, (int) ids.get(i).get());
+                } finally {
+                    pool.shutdown();
+                }
+            } finally {
+                np.stop();
+            }
+        }
+    }
+
+    @Test
+    public void badCreditTest() throws Exception {
+        String tag="CR";
+        NetPoint np=NetPoint.start(tag, 4, (cmd,o)->o, new NetPoint.Options().engine(NetPoint.ENGINES.NIO).unixSocket(false));
+        try {
+            String[] endpoint=DiscoveryRegistry.get().await(tag, 10000).iterator().next().split(":");
+            try (Socket socket=new Socket(endpoint[0], Integer.parseInt(endpoint[1]))) {
+                socket.setSoTimeout(5000);
+                byte[] greeting=("MicroRest\n"+tag).getBytes();
+                ByteBuffer hello=ByteBuffer.allocate(16+greeting.length);
+                hello.put((byte) 0xB5).put((byte) 3).put((byte) 1).put(JsonCodec.JSON.id()).putInt(0).putInt(0).putInt(greeting.length).put(greeting);
+                ByteBuffer credit=ByteBuffer.allocate(20);
+                credit.put((byte) 0xB5).put((byte) 3).put((byte) 7).put((byte) 0).putInt(1).putInt(0).putInt(4).putInt(-5);
+                socket.getOutputStream().write(hello.array());
+                socket.getOutputStream().write(credit.array());
+                // the server answers the hello, then drops the connection that sent a negative credit
+                InputStream in=socket.getInputStream();
+                while (in.read()>=0) ;
+            }
+            // and keeps serving everyone else
+            NetClient<TestObject> client=new NetClient<TestObject>(tag, 0).connectNext();
+            try {
+                assertEquals(1, client.load(new TestObject(1, "?")).getId());
+            } finally {
+                client.disconnect();
+            }
+        } finally {
+            np.stop();
+        }
+    }
 }